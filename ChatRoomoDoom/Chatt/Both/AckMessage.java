@@ -0,0 +1,25 @@
+package Both;
+
+/**
+ * Tells the server the sequence number of the last message the client received.
+ * Clients send it every so often, so the server only has to remember the messages sent after it
+ * in case they are lost with the connection.
+ */
+public class AckMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private long sequence;
+
+    /**
+     * Constructs an AckMessage for the message with the given sequence number.
+     */
+    public AckMessage(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns the sequence number of the last message the client received.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
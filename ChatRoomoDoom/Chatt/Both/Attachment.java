@@ -0,0 +1,74 @@
+package Both;
+
+import java.io.Serializable;
+
+/**
+ * Describes the file attached to a message: the hash its original bytes are stored under as a blob,
+ * its MIME type and the size of the image in pixels.
+ * The file is never decoded to send it, its bytes go across as they are and a client only decodes
+ * them when it shows the image, already knowing how much room the image takes.
+ */
+public class Attachment implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String hash;
+    private String mimeType;
+    private int width;
+    private int height;
+    private transient byte[] data;
+
+    /**
+     * Constructs an Attachment for the blob with the given hash.
+     *
+     * @param width the width in pixels, or 0 if it is not known
+     * @param height the height in pixels, or 0 if it is not known
+     */
+    public Attachment(String hash, String mimeType, int width, int height) {
+        this.hash = hash;
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the hash of the attached file's bytes in the blob store.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the MIME type of the attached file, e.g. image/jpeg.
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Returns the width of the image in pixels, or 0 if it is not known.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image in pixels, or 0 if it is not known.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the original bytes of the file on the sending side, or null once the attachment was sent.
+     * The bytes are uploaded as a blob and never part of the message itself.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Sets the original bytes of the file.
+     */
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+}
@@ -0,0 +1,666 @@
+package Both;
+
+import javax.swing.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.function.IntFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Protocol version 1: a compact binary format with a hand-written codec for every message.
+ * Each frame is a type byte, the payload length as a varint and the payload.
+ * Users are referenced by the numeric id the server gave them; the first time a user is sent on a
+ * connection a PROFILE frame defines it, and the receiving side keeps the profile for the rest of the
+ * connection. Images are never inlined: PROFILE and MMS_IDS frames carry the SHA-256 hash of the image
+ * and the bytes travel in BLOB frames, uploaded once and fetched by clients on demand.
+ * The older MMS and MMS_REF frames, which name their users and may inline the image, are still
+ * decoded for messages stored before.
+ * Friend lists never go over the wire, they only live in the client's saved data.
+ * The PROFILE frames are the only part that depends on the connection, so the frame of the message
+ * itself can be encoded once and shared by every receiver, see OutgoingMessage.
+ * Protocol version 2 is the same format, except that frames larger than the compression threshold
+ * may be sent Deflate-compressed inside a DEFLATED frame. Frames holding JPEG, PNG or GIF bytes are
+ * sent as they are, as compressing them again gains nothing.
+ * A HISTORY frame holds a page of stored messages, each encoded like the payload of an MMS_IDS frame.
+ */
+public class BinaryWireFormat extends WireFormat {
+    public static final int VERSION = 1;
+    public static final int DEFLATE_VERSION = 2;
+    public static final int COMPRESS_THRESHOLD = Integer.getInteger("chat.compressThreshold", 1024);
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    static final int MMS = 2;
+    static final int CLIENT_UPDATE = 3;
+    static final int MMS_REF = 4;
+    static final int PROFILE = 5;
+    static final int BLOB = 6;
+    static final int BLOB_REQUEST = 7;
+    static final int MMS_IDS = 8;
+    static final int PRESENCE_REQUEST = 9;
+    static final int PRESENCE_DELTA = 10;
+    static final int ACK = 11;
+    static final int DEFLATED = 12;
+    static final int BLOB_CHUNK = 13;
+    static final int BLOB_OFFSET = 14;
+    static final int HISTORY_REQUEST = 15;
+    static final int HISTORY = 16;
+
+    private HashSet<Integer> sentUsers = new HashSet<>();
+    private HashMap<Integer, User> receivedUsers = new HashMap<>();
+    private IntFunction<User> userLookup;
+    private boolean deflate;
+
+    /**
+     * Constructs a BinaryWireFormat for a connection, where every user is defined by a PROFILE frame.
+     */
+    public BinaryWireFormat() {
+    }
+
+    /**
+     * Constructs a BinaryWireFormat for a connection that may compress large frames, as agreed for protocol version 2.
+     */
+    public BinaryWireFormat(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    /**
+     * Constructs a BinaryWireFormat that looks up users that were not defined by a PROFILE frame,
+     * as needed to decode stored frames.
+     */
+    public BinaryWireFormat(IntFunction<User> userLookup) {
+        this.userLookup = userLookup;
+    }
+
+    /**
+     * Encodes the message, preceded by PROFILE frames for users this connection has not sent yet.
+     */
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encodeUsers(message));
+        byte[] frame = encodeFrame(message);
+        out.write(deflate ? deflateFrame(message, frame) : frame);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the PROFILE frames this connection still needs followed by the shared frame of the message.
+     */
+    @Override
+    public ByteBuffer[] encode(OutgoingMessage message) throws IOException {
+        byte[] users = encodeUsers(message.getMessage());
+        ByteBuffer frame = deflate ? message.getDeflatedFrame() : message.getFrame();
+        if (users.length == 0) {
+            return new ByteBuffer[] {frame};
+        }
+        return new ByteBuffer[] {ByteBuffer.wrap(users), frame};
+    }
+
+    /**
+     * Writes the PROFILE frames this connection still needs followed by the shared frame of the message.
+     */
+    @Override
+    public void write(OutgoingMessage message, OutputStream out) throws IOException {
+        out.write(encodeUsers(message.getMessage()));
+        if (deflate) {
+            message.writeDeflatedFrameTo(out);
+        } else {
+            message.writeFrameTo(out);
+        }
+    }
+
+    /**
+     * Encodes the frame of a message. The result does not depend on the connection.
+     */
+    public static byte[] encodeFrame(Message message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (message instanceof MmsMessage mms && mms.getImageHash() == null && mms.getImage() != null) {
+            FrameWriter.writeFrame(out, MMS, encodeMms(mms, true));
+        } else if (message instanceof MmsMessage) {
+            FrameWriter.writeFrame(out, MMS_IDS, encodeMms((MmsMessage) message, false));
+        } else if (message instanceof ClientUpdateMessage) {
+            FrameWriter.writeFrame(out, CLIENT_UPDATE, encodeClientUpdate((ClientUpdateMessage) message));
+        } else if (message instanceof BlobMessage) {
+            FrameWriter.writeFrame(out, BLOB, encodeBlob((BlobMessage) message));
+        } else if (message instanceof BlobRequestMessage) {
+            FrameWriter.writeFrame(out, BLOB_REQUEST, encodeBlobRequest((BlobRequestMessage) message));
+        } else if (message instanceof PresenceDeltaMessage) {
+            FrameWriter.writeFrame(out, PRESENCE_DELTA, encodePresenceDelta((PresenceDeltaMessage) message));
+        } else if (message instanceof PresenceRequestMessage) {
+            FrameWriter.writeFrame(out, PRESENCE_REQUEST, new byte[0]);
+        } else if (message instanceof AckMessage) {
+            FrameWriter.writeFrame(out, ACK, encodeAck((AckMessage) message));
+        } else if (message instanceof BlobChunkMessage) {
+            FrameWriter.writeFrame(out, BLOB_CHUNK, encodeBlobChunk((BlobChunkMessage) message));
+        } else if (message instanceof BlobOffsetMessage) {
+            FrameWriter.writeFrame(out, BLOB_OFFSET, encodeBlobOffset((BlobOffsetMessage) message));
+        } else if (message instanceof HistoryRequestMessage) {
+            FrameWriter.writeFrame(out, HISTORY_REQUEST, encodeHistoryRequest((HistoryRequestMessage) message));
+        } else if (message instanceof HistoryMessage) {
+            FrameWriter.writeFrame(out, HISTORY, encodeHistory((HistoryMessage) message));
+        } else {
+            throw new IOException("Cannot encode " + message.getClass().getSimpleName());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses an encoded frame into a DEFLATED frame, which holds the type and length of the
+     * original frame followed by its compressed payload. Like the frame itself the result does not
+     * depend on the connection.
+     *
+     * @return the DEFLATED frame, or the frame as it is if it is small, holds an image that is already
+     *         compressed or does not get smaller
+     */
+    public static byte[] deflateFrame(Message message, byte[] frame) throws IOException {
+        if (frame.length < COMPRESS_THRESHOLD || isCompressed(message)) {
+            return frame;
+        }
+        ByteBuffer original = ByteBuffer.wrap(frame);
+        int type = original.get() & 0xFF;
+        long length = FrameReader.tryReadVarint(original);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(original);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+
+        FrameWriter writer = new FrameWriter();
+        writer.writeVarint(type);
+        writer.writeVarint(length);
+        writer.writeBytes(compressed.toByteArray());
+        byte[] payload = writer.toByteArray();
+        if (payload.length >= frame.length) {
+            return frame;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter.writeFrame(out, DEFLATED, payload);
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks if a message carries image bytes that are already compressed. Chunks of an upload are
+     * taken to be, as attachments are mostly photos and only the first chunk shows the file type.
+     */
+    private static boolean isCompressed(Message message) {
+        if (message instanceof BlobMessage blob) {
+            return Blobs.isCompressedImage(blob.getData());
+        } else if (message instanceof BlobChunkMessage) {
+            return true;
+        }
+        return message instanceof MmsMessage mms && mms.getImageHash() == null && mms.getImage() != null; // inlined as PNG
+    }
+
+    /**
+     * Inflates the payload of a DEFLATED frame back into the payload of the original frame.
+     */
+    private static ByteBuffer inflate(FrameReader reader, long length) throws IOException {
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too large: " + length);
+        }
+        byte[] compressed = reader.readBytes();
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] payload = new byte[(int) length];
+        try {
+            int inflated = 0;
+            while (inflated < payload.length && !inflater.finished()) {
+                int count = inflater.inflate(payload, inflated, payload.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != payload.length) {
+                throw new IOException("Compressed frame too short");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(payload);
+    }
+
+    /**
+     * Encodes PROFILE frames for the users in the message that were not sent on this connection yet.
+     */
+    private byte[] encodeUsers(Message message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (message instanceof MmsMessage) {
+            defineUser(out, ((MmsMessage) message).getSender());
+            for (User receiver : ((MmsMessage) message).getReceivers().values()) {
+                defineUser(out, receiver);
+            }
+        } else if (message instanceof ClientUpdateMessage) {
+            ClientUpdateMessage update = (ClientUpdateMessage) message;
+            defineUser(out, update.getUser());
+            if (update.getUserList() != null) {
+                for (User user : update.getUserList().values()) {
+                    defineUser(out, user);
+                }
+            }
+        } else if (message instanceof PresenceDeltaMessage) {
+            for (User user : ((PresenceDeltaMessage) message).getChanges()) {
+                defineUser(out, user);
+            }
+        } else if (message instanceof HistoryMessage) {
+            for (MmsMessage mms : ((HistoryMessage) message).getMessages()) {
+                out.write(encodeUsers(mms));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads frames from a blocking stream until one of them holds a message.
+     */
+    @Override
+    public Message read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        while (true) {
+            int type = data.read();
+            if (type == -1) {
+                throw new EOFException();
+            }
+            long length = FrameReader.readVarint(data);
+            if (length > MAX_FRAME_LENGTH) {
+                throw new IOException("Frame too large: " + length);
+            }
+            byte[] payload = new byte[(int) length];
+            data.readFully(payload);
+
+            Message message = decodeFrame(type, ByteBuffer.wrap(payload));
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Decodes complete frames from the buffer until one of them holds a message.
+     */
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int type = buffer.get() & 0xFF;
+            long length = FrameReader.tryReadVarint(buffer);
+            if (length > MAX_FRAME_LENGTH) {
+                throw new IOException("Frame too large: " + length);
+            }
+            if (length < 0 || buffer.remaining() < length) {
+                buffer.position(start);
+                return null;
+            }
+
+            ByteBuffer payload = buffer.slice();
+            payload.limit((int) length);
+            buffer.position(buffer.position() + (int) length);
+
+            Message message = decodeFrame(type, payload);
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes one frame.
+     *
+     * @return the message in the frame, or null for frames that only update the connection's state
+     */
+    private Message decodeFrame(int type, ByteBuffer payload) throws IOException {
+        FrameReader reader = new FrameReader(payload);
+        switch (type) {
+            case PROFILE:
+                int id = (int) reader.readVarint();
+                User user = new User(reader.readString(), new ImageIcon());
+                user.setId(id);
+                user.setImageHash(reader.readString());
+                receivedUsers.put(id, user);
+                return null;
+            case MMS:
+                return decodeNamedMms(reader, true);
+            case MMS_REF:
+                return decodeNamedMms(reader, false);
+            case MMS_IDS:
+                return decodeMms(reader);
+            case CLIENT_UPDATE:
+                return decodeClientUpdate(reader);
+            case BLOB:
+                return new BlobMessage(reader.readString(), reader.readBytes());
+            case BLOB_REQUEST:
+                return new BlobRequestMessage(reader.readString());
+            case PRESENCE_DELTA:
+                return decodePresenceDelta(reader);
+            case PRESENCE_REQUEST:
+                return new PresenceRequestMessage();
+            case ACK:
+                return new AckMessage(reader.readVarint() - 1);
+            case BLOB_CHUNK:
+                return new BlobChunkMessage(reader.readString(), reader.readVarint(), reader.readVarint(), reader.readBytes());
+            case BLOB_OFFSET:
+                return new BlobOffsetMessage(reader.readString(), reader.readVarint() - 1);
+            case HISTORY_REQUEST:
+                return decodeHistoryRequest(reader);
+            case HISTORY:
+                return decodeHistory(reader);
+            case DEFLATED:
+                int originalType = (int) reader.readVarint();
+                if (originalType == DEFLATED) {
+                    throw new IOException("Nested compressed frame");
+                }
+                return decodeFrame(originalType, inflate(reader, reader.readVarint()));
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    /**
+     * Writes a PROFILE frame for the user unless it was already sent on this connection.
+     * A client that does not know its own id yet defines itself as user 0.
+     */
+    private void defineUser(ByteArrayOutputStream out, User user) throws IOException {
+        if (sentUsers.add(user.getId())) {
+            FrameWriter writer = new FrameWriter();
+            writer.writeVarint(user.getId());
+            writer.writeString(user.getUserName());
+            writer.writeString(user.getImageHash());
+            FrameWriter.writeFrame(out, PROFILE, writer.toByteArray());
+        }
+    }
+
+    /**
+     * Encodes an MMS_IDS frame, or an MMS frame naming its users and inlining the image for a message
+     * whose image is not in the blob store yet, which the server then moves there.
+     */
+    private static byte[] encodeMms(MmsMessage message, boolean inlineImage) throws IOException {
+        FrameWriter writer = new FrameWriter();
+        if (inlineImage) {
+            writer.writeString(message.getSender().getUserName());
+            writer.writeVarint(message.getReceivers().size());
+            for (String receiver : message.getReceivers().keySet()) {
+                writer.writeString(receiver);
+            }
+        } else {
+            writer.writeVarint(message.getSender().getId());
+            writer.writeVarint(message.getReceivers().size());
+            for (User receiver : message.getReceivers().values()) {
+                writer.writeVarint(receiver.getId());
+            }
+        }
+        writer.writeString(message.getText());
+        if (inlineImage) {
+            writer.writeBytes(Blobs.toImageBytes(message.getImage()));
+        } else {
+            writer.writeString(message.getImageHash());
+        }
+        writer.writeString(message.getServerTime());
+        writer.writeString(message.getClientTime());
+        writer.writeVarint(message.getServerTimeMillis());
+        writer.writeVarint(message.getSequence() + 1);
+        Attachment attachment = message.getAttachment();
+        writer.writeString(attachment != null ? attachment.getMimeType() : null);
+        writer.writeVarint(attachment != null ? attachment.getWidth() : 0);
+        writer.writeVarint(attachment != null ? attachment.getHeight() : 0);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes an MMS_IDS frame.
+     */
+    private MmsMessage decodeMms(FrameReader reader) throws IOException {
+        User sender = getUser((int) reader.readVarint(), true);
+        HashMap<String, User> receivers = new HashMap<>();
+        long receiverCount = reader.readVarint();
+        for (long i = 0; i < receiverCount; i++) {
+            User receiver = getUser((int) reader.readVarint(), true);
+            receivers.put(receiver.getUserName(), receiver);
+        }
+        MmsMessage message = new MmsMessage(reader.readString(), (ImageIcon) null, sender, receivers);
+        message.setImageHash(reader.readString());
+        return decodeMmsTimes(reader, message);
+    }
+
+    /**
+     * Decodes an MMS or MMS_REF frame, which name their users. The image is either inlined or a blob hash.
+     */
+    private MmsMessage decodeNamedMms(FrameReader reader, boolean inlineImage) throws IOException {
+        User sender = new User(reader.readString(), new ImageIcon());
+        HashMap<String, User> receivers = new HashMap<>();
+        long receiverCount = reader.readVarint();
+        for (long i = 0; i < receiverCount; i++) {
+            String receiver = reader.readString();
+            receivers.put(receiver, new User(receiver, new ImageIcon()));
+        }
+        String text = reader.readString();
+        MmsMessage message;
+        if (inlineImage) {
+            message = new MmsMessage(text, toImageIcon(reader.readBytes(), false), sender, receivers);
+        } else {
+            message = new MmsMessage(text, (ImageIcon) null, sender, receivers);
+            message.setImageHash(reader.readString());
+        }
+        return decodeMmsTimes(reader, message);
+    }
+
+    /**
+     * Decodes the times, the sequence number and the attachment's description at the end of every MMS frame.
+     * Frames stored before a field was added simply end early.
+     */
+    private MmsMessage decodeMmsTimes(FrameReader reader, MmsMessage message) throws IOException {
+        message.setServerTime(reader.readString());
+        message.setClientTime(reader.readString());
+        if (reader.hasRemaining()) {
+            message.setServerTimeMillis(reader.readVarint());
+        }
+        if (reader.hasRemaining()) {
+            message.setSequence(reader.readVarint() - 1);
+        }
+        if (reader.hasRemaining()) {
+            String mimeType = reader.readString();
+            int width = (int) reader.readVarint();
+            int height = (int) reader.readVarint();
+            if (mimeType != null && message.getImageHash() != null) {
+                message.setAttachment(new Attachment(message.getImageHash(), mimeType, width, height));
+            }
+        }
+        return message;
+    }
+
+    private static byte[] encodeBlob(BlobMessage message) {
+        FrameWriter writer = new FrameWriter();
+        writer.writeString(message.getHash());
+        writer.writeBytes(message.getData());
+        return writer.toByteArray();
+    }
+
+    private static byte[] encodeBlobChunk(BlobChunkMessage message) {
+        FrameWriter writer = new FrameWriter();
+        writer.writeString(message.getHash());
+        writer.writeVarint(message.getOffset());
+        writer.writeVarint(message.getLength());
+        writer.writeBytes(message.getData());
+        return writer.toByteArray();
+    }
+
+    private static byte[] encodeBlobOffset(BlobOffsetMessage message) {
+        FrameWriter writer = new FrameWriter();
+        writer.writeString(message.getHash());
+        writer.writeVarint(message.getOffset() + 1);
+        return writer.toByteArray();
+    }
+
+    private static byte[] encodeBlobRequest(BlobRequestMessage message) {
+        FrameWriter writer = new FrameWriter();
+        writer.writeString(message.getHash());
+        return writer.toByteArray();
+    }
+
+    private static byte[] encodeClientUpdate(ClientUpdateMessage message) {
+        FrameWriter writer = new FrameWriter();
+        writer.writeVarint(message.getUser().getId());
+        writer.writeBoolean(message.getUser().getConnected());
+        writer.writeVarint(message.getPresenceVersion());
+        if (message.getUserList() == null) {
+            writer.writeBoolean(false);
+        } else {
+            writer.writeBoolean(true);
+            writer.writeVarint(message.getUserList().size());
+            for (User user : message.getUserList().values()) {
+                writer.writeVarint(user.getId());
+                writer.writeBoolean(user.getConnected());
+            }
+        }
+        writer.writeVarint(message.getResumeSequence() + 1);
+        return writer.toByteArray();
+    }
+
+    private ClientUpdateMessage decodeClientUpdate(FrameReader reader) throws IOException {
+        ClientUpdateMessage message = new ClientUpdateMessage(getUser((int) reader.readVarint(), reader.readBoolean()));
+        message.setPresenceVersion(reader.readVarint());
+        if (reader.readBoolean()) {
+            HashMap<String, User> userList = new HashMap<>();
+            long userCount = reader.readVarint();
+            for (long i = 0; i < userCount; i++) {
+                User user = getUser((int) reader.readVarint(), reader.readBoolean());
+                userList.put(user.getUserName(), user);
+            }
+            message.setUserList(userList);
+        }
+        if (reader.hasRemaining()) {
+            message.setResumeSequence(reader.readVarint() - 1);
+        }
+        return message;
+    }
+
+    private static byte[] encodeHistoryRequest(HistoryRequestMessage message) {
+        FrameWriter writer = new FrameWriter();
+        writeNames(writer, message.getParticipants());
+        writer.writeVarint(message.getBefore() + 1);
+        writer.writeVarint(message.getCount());
+        return writer.toByteArray();
+    }
+
+    private static HistoryRequestMessage decodeHistoryRequest(FrameReader reader) throws IOException {
+        ArrayList<String> participants = readNames(reader);
+        long before = reader.readVarint() - 1;
+        return new HistoryRequestMessage(participants, before, (int) reader.readVarint());
+    }
+
+    /**
+     * Encodes a HISTORY frame. The messages are stored ones with their users in the user registry,
+     * so they are referenced by id like in an MMS_IDS frame.
+     */
+    private static byte[] encodeHistory(HistoryMessage message) throws IOException {
+        FrameWriter writer = new FrameWriter();
+        writeNames(writer, message.getParticipants());
+        writer.writeVarint(message.getNextCursor() + 1);
+        writer.writeVarint(message.getMessages().size());
+        for (MmsMessage mms : message.getMessages()) {
+            writer.writeBytes(encodeMms(mms, false));
+        }
+        return writer.toByteArray();
+    }
+
+    private HistoryMessage decodeHistory(FrameReader reader) throws IOException {
+        ArrayList<String> participants = readNames(reader);
+        long nextCursor = reader.readVarint() - 1;
+        ArrayList<MmsMessage> messages = new ArrayList<>();
+        long messageCount = reader.readVarint();
+        for (long i = 0; i < messageCount; i++) {
+            messages.add(decodeMms(new FrameReader(ByteBuffer.wrap(reader.readBytes()))));
+        }
+        return new HistoryMessage(participants, messages, nextCursor);
+    }
+
+    private static void writeNames(FrameWriter writer, ArrayList<String> names) {
+        writer.writeVarint(names.size());
+        for (String name : names) {
+            writer.writeString(name);
+        }
+    }
+
+    private static ArrayList<String> readNames(FrameReader reader) throws IOException {
+        ArrayList<String> names = new ArrayList<>();
+        long nameCount = reader.readVarint();
+        for (long i = 0; i < nameCount; i++) {
+            names.add(reader.readString());
+        }
+        return names;
+    }
+
+    private static byte[] encodeAck(AckMessage message) {
+        FrameWriter writer = new FrameWriter();
+        writer.writeVarint(message.getSequence() + 1);
+        return writer.toByteArray();
+    }
+
+    private static byte[] encodePresenceDelta(PresenceDeltaMessage message) {
+        FrameWriter writer = new FrameWriter();
+        writer.writeVarint(message.getPresenceVersion());
+        writer.writeVarint(message.getChanges().size());
+        for (User user : message.getChanges()) {
+            writer.writeVarint(user.getId());
+            writer.writeBoolean(user.getConnected());
+        }
+        return writer.toByteArray();
+    }
+
+    private PresenceDeltaMessage decodePresenceDelta(FrameReader reader) throws IOException {
+        long presenceVersion = reader.readVarint();
+        ArrayList<User> changes = new ArrayList<>();
+        long changeCount = reader.readVarint();
+        for (long i = 0; i < changeCount; i++) {
+            changes.add(getUser((int) reader.readVarint(), reader.readBoolean()));
+        }
+        return new PresenceDeltaMessage(presenceVersion, changes);
+    }
+
+    /**
+     * Returns a fresh copy of a user defined on this connection, like deserialization would.
+     *
+     * @throws IOException if the user was never defined and cannot be looked up
+     */
+    private User getUser(int id, boolean connected) throws IOException {
+        User known = receivedUsers.get(id);
+        if (known == null && userLookup != null) {
+            known = userLookup.apply(id);
+        }
+        if (known == null) {
+            throw new IOException("Unknown user id " + id);
+        }
+        User user = new User(known.getUserName(), new ImageIcon());
+        user.setId(id);
+        user.setImageHash(known.getImageHash());
+        user.setConnected(connected);
+        return user;
+    }
+
+    /**
+     * Decodes image bytes of the old MMS frame. Profile pictures are never null, message images are null when absent.
+     */
+    static ImageIcon toImageIcon(byte[] bytes, boolean emptyIfMissing) {
+        if (bytes == null) {
+            return emptyIfMissing ? new ImageIcon() : null;
+        }
+        return new ImageIcon(bytes);
+    }
+}
@@ -0,0 +1,54 @@
+package Both;
+
+/**
+ * Carries one piece of a blob that a client uploads. Large attachments are uploaded in chunks,
+ * so chat messages sent meanwhile go out between them instead of waiting for the whole upload.
+ */
+public class BlobChunkMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private String hash;
+    private long offset;
+    private long length;
+    private byte[] data;
+
+    /**
+     * Constructs a new BlobChunkMessage.
+     *
+     * @param offset where the chunk starts in the blob
+     * @param length the length of the whole blob
+     */
+    public BlobChunkMessage(String hash, long offset, long length, byte[] data) {
+        this.hash = hash;
+        this.offset = offset;
+        this.length = length;
+        this.data = data;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the whole blob.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns where the chunk starts in the blob.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the length of the whole blob.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the bytes of the chunk.
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,33 @@
+package Both;
+
+/**
+ * Carries the bytes of an image blob. Clients upload a blob once before the first message that
+ * references it, and the server answers a BlobRequestMessage with one.
+ */
+public class BlobMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private String hash;
+    private byte[] data;
+
+    /**
+     * Constructs a new BlobMessage. The data is null when the server does not have the blob.
+     */
+    public BlobMessage(String hash, byte[] data) {
+        this.hash = hash;
+        this.data = data;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the blob.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the bytes of the blob, or null if it was not found.
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,36 @@
+package Both;
+
+/**
+ * Asks the server how much of a blob upload it already has, or gives the answer.
+ * A client asks before it uploads a blob in chunks, so an upload that was cut off by a lost
+ * connection continues where it stopped, and a blob the server already has is not sent at all.
+ */
+public class BlobOffsetMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private String hash;
+    private long offset;
+
+    /**
+     * Constructs a new BlobOffsetMessage.
+     *
+     * @param offset the number of bytes the server has, or -1 when asking
+     */
+    public BlobOffsetMessage(String hash, long offset) {
+        this.hash = hash;
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the blob.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the number of bytes of the blob the server has, or -1 for a question.
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
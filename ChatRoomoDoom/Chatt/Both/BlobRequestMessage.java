@@ -0,0 +1,23 @@
+package Both;
+
+/**
+ * Asks the server for the bytes of an image blob the client does not have cached.
+ */
+public class BlobRequestMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private String hash;
+
+    /**
+     * Constructs a new BlobRequestMessage for the blob with the given hash.
+     */
+    public BlobRequestMessage(String hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the wanted blob.
+     */
+    public String getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,121 @@
+package Both;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+
+/**
+ * Helpers for images that are stored once and referenced by the SHA-256 hash of their bytes.
+ * The hash is written as 64 lower case hex digits, which is also the blob's file name.
+ */
+public class Blobs {
+
+    /**
+     * Returns the hash a blob with these bytes is stored under.
+     */
+    public static String hash(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Returns the hash of the bytes read from the stream, without holding all of them in memory.
+     */
+    public static String hash(InputStream in) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+                digest.update(buffer, 0, count);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Checks that a string looks like a blob hash, so it is safe to use as a file name.
+     */
+    public static boolean isHash(String hash) {
+        return hash != null && hash.length() == 64 && hash.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    /**
+     * Describes a file to attach to a message. The MIME type and size are read from the image's
+     * header, without decoding its pixels.
+     */
+    public static Attachment toAttachment(byte[] data) {
+        String mimeType = "application/octet-stream";
+        int width = 0;
+        int height = 0;
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+                    if (mimeTypes != null && mimeTypes.length > 0) {
+                        mimeType = mimeTypes[0];
+                    }
+                    reader.setInput(in, true, true);
+                    width = reader.getWidth(0);
+                    height = reader.getHeight(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error in reading image header: " + e.getMessage());
+        }
+        Attachment attachment = new Attachment(hash(data), mimeType, width, height);
+        attachment.setData(data);
+        return attachment;
+    }
+
+    /**
+     * Checks if the bytes are a JPEG, PNG or GIF image, which are compressed already.
+     */
+    public static boolean isCompressedImage(byte[] data) {
+        if (data == null || data.length < 4) {
+            return false;
+        }
+        boolean jpeg = (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF;
+        boolean png = (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G';
+        boolean gif = data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8';
+        return jpeg || png || gif;
+    }
+
+    /**
+     * Encodes an image as PNG.
+     *
+     * @return the PNG bytes, or null if there is no image
+     */
+    public static byte[] toImageBytes(ImageIcon icon) throws IOException {
+        if (icon == null || icon.getIconWidth() <= 0 || icon.getIconHeight() <= 0) {
+            return null;
+        }
+        BufferedImage image = new BufferedImage(icon.getIconWidth(), icon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.drawImage(icon.getImage(), 0, 0, null);
+        graphics.dispose();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        return bytes.toByteArray();
+    }
+}
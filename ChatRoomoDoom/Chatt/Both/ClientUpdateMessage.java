@@ -5,10 +5,14 @@ import java.util.HashMap;
 /**
  * Represents an update for a client in the messaging system.
  * This class holds the information about a user and a list of users.
+ * Sent by the server it is a full snapshot of the online users at a presence version; the changes
+ * after it follow as PresenceDeltaMessages.
  */
 public class ClientUpdateMessage implements Message {
     private User user;
     private HashMap<String, User> userList;
+    private long presenceVersion;
+    private long resumeSequence = -1;
 
     /**
      * Constructs a new ClientUpdateMessage with the specified user.
@@ -37,4 +41,32 @@ public class ClientUpdateMessage implements Message {
     public void setUserList(HashMap<String, User> userList) {
         this.userList = userList;
     }
+
+    /**
+     * Returns the presence version this update brings the client to.
+     */
+    public long getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    /**
+     * Sets the presence version this update brings the client to.
+     */
+    public void setPresenceVersion(long presenceVersion) {
+        this.presenceVersion = presenceVersion;
+    }
+
+    /**
+     * Returns the sequence number of the last message a reconnecting client received, or -1 for a new session.
+     */
+    public long getResumeSequence() {
+        return resumeSequence;
+    }
+
+    /**
+     * Sets the sequence number of the last message the client received, so the server can send what it missed.
+     */
+    public void setResumeSequence(long resumeSequence) {
+        this.resumeSequence = resumeSequence;
+    }
 }
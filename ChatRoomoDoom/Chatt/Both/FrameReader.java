@@ -0,0 +1,122 @@
+package Both;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the payload of a binary frame written by a FrameWriter.
+ */
+public class FrameReader {
+    private ByteBuffer buffer;
+
+    /**
+     * Constructs a FrameReader over the payload of one frame.
+     */
+    public FrameReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads a single unsigned byte.
+     */
+    public int readByte() throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new EOFException("Frame too short");
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Reads a boolean written as one byte.
+     */
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    /**
+     * Reads a varint.
+     */
+    public long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Reads a string that may be null.
+     */
+    public String readString() throws IOException {
+        byte[] bytes = readBytes();
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a byte array that may be null.
+     */
+    public byte[] readBytes() throws IOException {
+        long length = readVarint() - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new EOFException("Frame too short");
+        }
+        byte[] bytes = new byte[(int) length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Checks if the payload has bytes left. Fields added to a frame later are only read when present.
+     */
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Reads a varint from a blocking stream.
+     */
+    public static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Reads a varint from a buffer that may not hold all of it yet.
+     *
+     * @return the value, or -1 if the buffer ends before the varint does
+     */
+    public static long tryReadVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int b = buffer.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
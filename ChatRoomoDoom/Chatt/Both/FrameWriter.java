@@ -0,0 +1,86 @@
+package Both;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the payload of a binary frame. Numbers are written as unsigned varints and
+ * strings as UTF-8, both prefixed with their length so a FrameReader can read them back.
+ */
+public class FrameWriter {
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    /**
+     * Writes a single byte.
+     */
+    public void writeByte(int value) {
+        bytes.write(value);
+    }
+
+    /**
+     * Writes a boolean as one byte.
+     */
+    public void writeBoolean(boolean value) {
+        bytes.write(value ? 1 : 0);
+    }
+
+    /**
+     * Writes a non-negative number as a varint, using one byte for every seven bits.
+     */
+    public void writeVarint(long value) {
+        try {
+            writeVarint(bytes, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a string that may be null. The length is stored plus one so that zero can mean null.
+     */
+    public void writeString(String value) {
+        writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a byte array that may be null, prefixed with its length plus one.
+     */
+    public void writeBytes(byte[] value) {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+        writeVarint(value.length + 1L);
+        bytes.write(value, 0, value.length);
+    }
+
+    /**
+     * Returns the bytes written so far.
+     */
+    public byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a whole frame: the type byte, the payload length as a varint and the payload.
+     */
+    public static void writeFrame(OutputStream out, int type, byte[] payload) throws IOException {
+        out.write(type);
+        writeVarint(out, payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Writes a non-negative number as a varint to the given stream.
+     */
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
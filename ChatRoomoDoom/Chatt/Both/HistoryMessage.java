@@ -0,0 +1,55 @@
+package Both;
+
+import java.util.ArrayList;
+
+/**
+ * One page of a conversation's history, sent in answer to a HistoryRequestMessage.
+ * The messages are in the order they were sent, and the cursor is passed back in the next request
+ * to get the messages before them.
+ */
+public class HistoryMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private ArrayList<String> participants;
+    private ArrayList<MmsMessage> messages;
+    private long nextCursor;
+
+    /**
+     * Constructs a new HistoryMessage.
+     *
+     * @param participants the participants named in the request
+     * @param nextCursor the cursor for the older messages, or -1 if there are none
+     */
+    public HistoryMessage(ArrayList<String> participants, ArrayList<MmsMessage> messages, long nextCursor) {
+        this.participants = participants;
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Returns the participants named in the request, telling which conversation this page belongs to.
+     */
+    public ArrayList<String> getParticipants() {
+        return participants;
+    }
+
+    /**
+     * Returns the messages on this page, oldest first.
+     */
+    public ArrayList<MmsMessage> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Returns the cursor to ask for the messages before this page, or -1 if there are none.
+     */
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Returns true if older messages can be asked for.
+     */
+    public boolean hasMore() {
+        return nextCursor >= 0;
+    }
+}
@@ -0,0 +1,50 @@
+package Both;
+
+import java.util.ArrayList;
+
+/**
+ * Asks the server for the newest messages of a conversation before a cursor. A conversation is
+ * the sender and receivers of a message together; the client asking always takes part, so it only
+ * names the other users. Asking without naming anyone gets every message the client sent or received.
+ * The server answers with a HistoryMessage holding the cursor for the page before it.
+ */
+public class HistoryRequestMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private ArrayList<String> participants;
+    private long before;
+    private int count;
+
+    /**
+     * Constructs a new HistoryRequestMessage.
+     *
+     * @param participants the names of the other users in the conversation, or none for all of the client's messages
+     * @param before the sequence number the messages must come before, or -1 for the newest messages
+     * @param count the maximum number of messages
+     */
+    public HistoryRequestMessage(ArrayList<String> participants, long before, int count) {
+        this.participants = participants;
+        this.before = before;
+        this.count = count;
+    }
+
+    /**
+     * Returns the names of the other users in the conversation.
+     */
+    public ArrayList<String> getParticipants() {
+        return participants;
+    }
+
+    /**
+     * Returns the sequence number the messages must come before, or -1 for the newest messages.
+     */
+    public long getBefore() {
+        return before;
+    }
+
+    /**
+     * Returns the maximum number of messages.
+     */
+    public int getCount() {
+        return count;
+    }
+}
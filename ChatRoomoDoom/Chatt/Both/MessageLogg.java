@@ -1,7 +1,8 @@
 package Both;
 
+import Server.MessagePage;
 import Server.SaveFileManager;
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -9,36 +10,87 @@ import java.util.List;
  * This class provides methods to set up the chat, add messages, save messages, and retrieve messages.
  */
 public class MessageLogg {
-    private static ArrayList<MmsMessage> messages = new ArrayList<>();
     static SaveFileManager fileManager;
 
     /**
-     * Sets up the global chat by initializing the file manager and loading existing messages from the file.
+     * Sets up the global chat by opening the message store. Messages stay on disk until they are read.
+     * The messages of a SaveFile.txt or SaveFile.log left by an older server are imported into the store first.
      */
     public static void setup() {
-        fileManager = new SaveFileManager("SaveFile.txt");
-        messages = fileManager.getMmsMessages();
+        fileManager = new SaveFileManager("messages");
+        fileManager.importOldMessages("SaveFile.txt", "SaveFile.log");
     }
 
     /**
-     * Adds a new message to the global chat and saves the updated message list.
+     * Adds a new message to the global chat and appends it to the message store.
+     * The message's shared frame is reused as the record, so it is not encoded again.
+     *
+     * @return the sequence number of the message, or -1 if it could not be saved
      */
-    public static void addMessage(MmsMessage message) {
-        messages.add(message);
-        MessageLogg.save();
+    public static long addMessage(OutgoingMessage message) {
+        return fileManager.appendMessage(message);
     }
 
     /**
-     * Saves the current state of the global chat messages to the file.
+     * Reads the stored message with the given sequence number.
+     */
+    public static MmsMessage getMessage(long sequence) throws IOException {
+        return fileManager.readMessage(sequence);
+    }
+
+    /**
+     * Returns the sequence number of the oldest message that is still stored.
+     */
+    public static long getFirstSequence() {
+        return fileManager.getFirstSequence();
+    }
+
+    /**
+     * Returns the sequence number the next stored message will get.
+     */
+    public static long getNextSequence() {
+        return fileManager.getNextSequence();
+    }
+
+    /**
+     * Forces the messages appended so far to disk.
      */
     public static void save() {
-        fileManager.saveFile();
+        fileManager.sync();
     }
 
     /**
-     * Returns the list of all messages in the global chat.
+     * Returns the list of all stored messages in the global chat. The list reads messages from disk on access.
      */
     public static List<MmsMessage> getMessages() {
-        return messages;
+        return fileManager.getMmsMessages();
+    }
+
+    /**
+     * Returns one page of the messages stamped from fromMillis up to, but not including, toMillis.
+     *
+     * @param cursor the cursor of the previous page, or -1 for the first page
+     */
+    public static MessagePage getMessagesBetween(long fromMillis, long toMillis, long cursor, int pageSize) throws IOException {
+        return fileManager.readPage(fromMillis, toMillis, cursor, pageSize);
+    }
+
+    /**
+     * Returns one page of the messages stamped from fromMillis up to, but not including, toMillis
+     * that hold every word of the query.
+     *
+     * @param cursor the cursor of the previous page, or -1 for the first page
+     */
+    public static MessagePage searchMessages(String query, long fromMillis, long toMillis, long cursor, int pageSize) throws IOException {
+        return fileManager.search(query, fromMillis, toMillis, cursor, pageSize);
+    }
+
+    /**
+     * Returns the newest stored messages before a cursor that hold any of the given index terms, oldest first.
+     *
+     * @param before the cursor of the previous page, or -1 for the newest messages
+     */
+    public static MessagePage getHistory(List<String> terms, long before, int count) throws IOException {
+        return fileManager.readHistory(terms, before, count);
     }
 }
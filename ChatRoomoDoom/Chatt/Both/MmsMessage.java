@@ -1,6 +1,9 @@
 package Both;
 
 import javax.swing.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.HashMap;
 
 /**
@@ -8,26 +11,42 @@ import java.util.HashMap;
  * This class implements the Message interface.
  */
 public class MmsMessage implements Message {
+    private static final long serialVersionUID = 1978239470911783200L; // Ensure it matches with saved data
 
     private String text;
     private ImageIcon image;
+    private String imageHash;
+    private Attachment attachment;
     private User sender;
     private HashMap<String, User> receivers;
     private String serverTime;
+    private long serverTimeMillis;
+    private long sequence = -1;
     private String clientTime;
 
     /**
-     * Constructs a new MMS Message with the specified details.
+     * Constructs a new MMS Message with the specified details. A file at imagePath is attached with
+     * its original bytes, which are not decoded.
      */
-    public MmsMessage(String text, String imagePath, User sender, HashMap<String, User> receivers) {
+    public MmsMessage(String text, String imagePath, User sender, HashMap<String, User> receivers) throws IOException {
         this.text = text;
         if (imagePath != null && !imagePath.isEmpty()) {
-            this.image = new ImageIcon(imagePath);
+            setAttachment(Blobs.toAttachment(Files.readAllBytes(Paths.get(imagePath))));
         }
         this.sender = sender;
         this.receivers = receivers;
     }
 
+    /**
+     * Constructs a new MMS Message with an already loaded image, as used when decoding a message.
+     */
+    public MmsMessage(String text, ImageIcon image, User sender, HashMap<String, User> receivers) {
+        this.text = text;
+        this.image = image;
+        this.sender = sender;
+        this.receivers = receivers;
+    }
+
     /**
      * Returns the text of the message.
      */
@@ -42,6 +61,42 @@ public class MmsMessage implements Message {
         return image;
     }
 
+    /**
+     * Sets the image of the message, e.g. once it is fetched from the blob store.
+     */
+    public void setImage(ImageIcon image) {
+        this.image = image;
+    }
+
+    /**
+     * Returns the hash of the image in the blob store, or null if the message has no stored image.
+     */
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    /**
+     * Sets the hash of the image in the blob store.
+     */
+    public void setImageHash(String imageHash) {
+        this.imageHash = imageHash;
+    }
+
+    /**
+     * Returns the description of the attached file, or null if the message has none or was stored without one.
+     */
+    public Attachment getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Attaches a file, whose bytes are stored under the attachment's hash, which becomes the image hash.
+     */
+    public void setAttachment(Attachment attachment) {
+        this.attachment = attachment;
+        this.imageHash = attachment.getHash();
+    }
+
     /**
      * Returns the user who sent the message.
      */
@@ -49,6 +104,13 @@ public class MmsMessage implements Message {
         return sender;
     }
 
+    /**
+     * Sets the user who sent the message, e.g. to the sender's profile on the server.
+     */
+    public void setSender(User sender) {
+        this.sender = sender;
+    }
+
     /**
      * Returns the server time when the message was sent.
      */
@@ -63,6 +125,35 @@ public class MmsMessage implements Message {
         this.serverTime = serverTime;
     }
 
+    /**
+     * Returns the server time when the message was sent, in epoch milliseconds.
+     */
+    public long getServerTimeMillis() {
+        return serverTimeMillis;
+    }
+
+    /**
+     * Sets the server time for the message in epoch milliseconds.
+     */
+    public void setServerTimeMillis(long serverTimeMillis) {
+        this.serverTimeMillis = serverTimeMillis;
+    }
+
+    /**
+     * Returns the sequence number the server gave the message, or -1 if it has none yet.
+     * Sequence numbers grow in the order messages are stamped and are also the message's place in the message store.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sets the sequence number of the message.
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     /**
      * Returns the client time when the message was sent.
      */
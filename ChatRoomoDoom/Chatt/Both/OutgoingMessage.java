@@ -0,0 +1,80 @@
+package Both;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A message on its way to one or more connections.
+ * Its binary frame is encoded at most once, the first time a connection asks for it, and the same
+ * bytes are then written to every connection that uses the binary format. This keeps a group message
+ * with an image from being encoded again for every receiver. The compressed frame for connections
+ * that agreed on compression is made the same way, once.
+ */
+public class OutgoingMessage {
+    private Message message;
+    private byte[] frame;
+    private byte[] deflatedFrame;
+
+    /**
+     * Constructs an OutgoingMessage for the message, which must not change while it is being sent.
+     */
+    public OutgoingMessage(Message message) {
+        this.message = message;
+    }
+
+    /**
+     * Returns the message.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns a read-only view of the shared binary frame, encoding it if no connection has yet.
+     */
+    public ByteBuffer getFrame() throws IOException {
+        return ByteBuffer.wrap(encodeFrame()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the shared binary frame to the stream, encoding it if no connection has yet.
+     */
+    public void writeFrameTo(OutputStream out) throws IOException {
+        out.write(encodeFrame());
+    }
+
+    /**
+     * Returns a read-only view of the shared frame for connections that compress large frames.
+     */
+    public ByteBuffer getDeflatedFrame() throws IOException {
+        return ByteBuffer.wrap(deflateFrame()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the shared frame for connections that compress large frames to the stream.
+     */
+    public void writeDeflatedFrameTo(OutputStream out) throws IOException {
+        out.write(deflateFrame());
+    }
+
+    /**
+     * Compresses the frame once and remembers it. Frames that are not worth compressing are used as they are.
+     */
+    private synchronized byte[] deflateFrame() throws IOException {
+        if (deflatedFrame == null) {
+            deflatedFrame = BinaryWireFormat.deflateFrame(message, encodeFrame());
+        }
+        return deflatedFrame;
+    }
+
+    /**
+     * Encodes the frame once and remembers it.
+     */
+    private synchronized byte[] encodeFrame() throws IOException {
+        if (frame == null) {
+            frame = BinaryWireFormat.encodeFrame(message);
+        }
+        return frame;
+    }
+}
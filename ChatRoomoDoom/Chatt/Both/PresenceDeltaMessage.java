@@ -0,0 +1,36 @@
+package Both;
+
+import java.util.ArrayList;
+
+/**
+ * The joins and leaves of one presence window. Each changed user is listed once with the connected
+ * status it ended the window with. Every delta raises the presence version by one, so a client can
+ * tell when it missed one and ask for a snapshot.
+ */
+public class PresenceDeltaMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private long presenceVersion;
+    private ArrayList<User> changes;
+
+    /**
+     * Constructs a new PresenceDeltaMessage bringing clients to the given presence version.
+     */
+    public PresenceDeltaMessage(long presenceVersion, ArrayList<User> changes) {
+        this.presenceVersion = presenceVersion;
+        this.changes = changes;
+    }
+
+    /**
+     * Returns the presence version this delta brings the client to.
+     */
+    public long getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    /**
+     * Returns the users that joined or left.
+     */
+    public ArrayList<User> getChanges() {
+        return changes;
+    }
+}
@@ -0,0 +1,9 @@
+package Both;
+
+/**
+ * Asks the server for a full snapshot of the online users, sent by a client that noticed it missed
+ * a presence update.
+ */
+public class PresenceRequestMessage implements Message {
+    private static final long serialVersionUID = 1L;
+}
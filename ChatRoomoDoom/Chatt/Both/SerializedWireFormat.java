@@ -0,0 +1,239 @@
+package Both;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Protocol version 0: messages are sent with Java object serialization, as the chat always did.
+ * Kept for clients that ask for it, the binary format is used otherwise.
+ * The object stream remembers every object it wrote so it can send back-references to them, which
+ * keeps all of them in memory for as long as the stream lives. The stream is therefore reset once
+ * it has written a given number of messages or bytes, which also makes changed objects be sent again
+ * instead of as references to their old state.
+ * Every message goes out as a frame of its length followed by the stream bytes written for it, so a
+ * non-blocking reader knows when a message is complete and deserializes each message only once.
+ */
+public class SerializedWireFormat extends WireFormat {
+    public static final int VERSION = 0;
+    private static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+    private static final int FRAME_HEADER_LENGTH = 4;
+
+    private int resetMessages;
+    private long resetBytes;
+    private int messagesSinceReset;
+    private long bytesSinceReset;
+    private long retainedHandles;
+    private long resets;
+    private ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private ObjectOutputStream writer;
+    private ObjectInputStream reader;
+    private boolean headerRead;
+
+    /**
+     * Constructs a SerializedWireFormat. The client resets its stream after every message,
+     * which is what lets the NIO server decode its messages one by one.
+     */
+    public SerializedWireFormat(boolean resetAfterEachMessage) {
+        this(resetAfterEachMessage ? 1 : 0, 0);
+    }
+
+    /**
+     * Constructs a SerializedWireFormat that resets its stream once either budget is used up.
+     *
+     * @param resetMessages the number of messages written between resets, or 0 for no limit
+     * @param resetBytes the number of bytes written between resets, or 0 for no limit
+     */
+    public SerializedWireFormat(int resetMessages, long resetBytes) {
+        this.resetMessages = resetMessages;
+        this.resetBytes = resetBytes;
+    }
+
+    /**
+     * Serializes the message into a frame. The first message also carries the stream header.
+     */
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        if (writer == null) {
+            writer = new CountingObjectOutputStream();
+        }
+        writer.writeObject(message);
+        writer.flush();
+        messagesSinceReset++;
+        bytesSinceReset += encoded.size();
+        if ((resetMessages > 0 && messagesSinceReset >= resetMessages) || (resetBytes > 0 && bytesSinceReset >= resetBytes)) {
+            writer.reset();
+            writer.flush();
+            messagesSinceReset = 0;
+            bytesSinceReset = 0;
+            retainedHandles = 0;
+            resets++;
+        }
+
+        byte[] bytes = ByteBuffer.allocate(FRAME_HEADER_LENGTH + encoded.size()).putInt(encoded.size()).put(encoded.toByteArray()).array();
+        encoded.reset();
+        return bytes;
+    }
+
+    /**
+     * Returns how many objects the stream currently keeps for back-references.
+     */
+    public long getRetainedHandles() {
+        return retainedHandles;
+    }
+
+    /**
+     * Returns how many times the stream has been reset.
+     */
+    public long getResets() {
+        return resets;
+    }
+
+    /**
+     * An object stream that counts the objects it writes for the first time since the last reset,
+     * which are the ones it keeps a handle to. Objects written again only as a back-reference are not
+     * offered for replacement, so they are not counted twice.
+     */
+    private class CountingObjectOutputStream extends ObjectOutputStream {
+
+        /**
+         * Constructs a stream writing to the encoding buffer.
+         */
+        CountingObjectOutputStream() throws IOException {
+            super(encoded);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object object) {
+            retainedHandles++;
+            return object;
+        }
+    }
+
+    /**
+     * Reads the next message with an object stream that is created on the first call.
+     * The stream reads the frames' contents one after the other, as one continuous object stream.
+     */
+    @Override
+    public Message read(InputStream in) throws IOException, ClassNotFoundException {
+        if (reader == null) {
+            reader = new ObjectInputStream(new FrameInputStream(in));
+        }
+        return (Message) reader.readObject();
+    }
+
+    /**
+     * Deserializes one message from the buffer once its whole frame has arrived.
+     * As the peer resets its stream after every message, each one can be read by a fresh
+     * stream that is given the header again.
+     */
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        if (buffer.remaining() < FRAME_HEADER_LENGTH) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 0 || length > BinaryWireFormat.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (buffer.remaining() < FRAME_HEADER_LENGTH + length) {
+            return null;
+        }
+
+        int start = buffer.arrayOffset() + buffer.position() + FRAME_HEADER_LENGTH;
+        buffer.position(buffer.position() + FRAME_HEADER_LENGTH + length);
+        if (!headerRead) {
+            if (length < STREAM_HEADER.length || !Arrays.equals(buffer.array(), start, start + STREAM_HEADER.length, STREAM_HEADER, 0, STREAM_HEADER.length)) {
+                throw new IOException("Invalid stream header");
+            }
+            start += STREAM_HEADER.length;
+            length -= STREAM_HEADER.length;
+            headerRead = true;
+        }
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(buffer.array(), start, length);
+        try (ObjectInputStream in = new ObjectInputStream(new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER), bytes))) {
+            return (Message) in.readObject();
+        } catch (EOFException e) {
+            throw new IOException("Message cut short in its frame", e);
+        }
+    }
+
+    /**
+     * Reads the contents of consecutive frames from a blocking stream, leaving out their lengths.
+     */
+    private static class FrameInputStream extends InputStream {
+        private InputStream in;
+        private int remaining;
+
+        /**
+         * Constructs a FrameInputStream reading frames from the given stream.
+         */
+        FrameInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextFrame()) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Frame cut short");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextFrame()) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, Math.min(length, remaining));
+            if (read == -1) {
+                throw new EOFException("Frame cut short");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        /**
+         * Reads the length of the next frame once the current one is used up.
+         *
+         * @return false if the stream ended between frames
+         */
+        private boolean nextFrame() throws IOException {
+            while (remaining == 0) {
+                int length = 0;
+                for (int i = 0; i < FRAME_HEADER_LENGTH; i++) {
+                    int b = in.read();
+                    if (b == -1) {
+                        if (i == 0) {
+                            return false;
+                        }
+                        throw new EOFException("Frame length cut short");
+                    }
+                    length = length << 8 | b;
+                }
+                if (length < 0 || length > BinaryWireFormat.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                remaining = length;
+            }
+            return true;
+        }
+    }
+}
@@ -10,10 +10,13 @@ import java.util.HashMap;
  */
 public class User implements Serializable {
     private static final long serialVersionUID = 1L; // Ensure it matches with saved data
+    private int id;
     private String userName;
     private ImageIcon image;
+    private String imageHash;
     private boolean connected;
     private HashMap<String, User> friendList;
+    private Long lastSequence; // only kept in the client's saved data, null in data saved before it existed
 
     /**
      * Constructs a new User with the specified username and image path.
@@ -25,6 +28,30 @@ public class User implements Serializable {
         friendList = new HashMap<>();
     }
 
+    /**
+     * Constructs a new User with the specified username and an already loaded image.
+     */
+    public User(String userName, ImageIcon image) {
+        this.userName = userName;
+        this.image = image;
+        connected = true;
+        friendList = new HashMap<>();
+    }
+
+    /**
+     * Returns the id the server gave this user, or 0 if the user is not registered yet.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Sets the id the server gave this user.
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+
     /**
      * Returns the username of this user.
      */
@@ -39,6 +66,20 @@ public class User implements Serializable {
         return image;
     }
 
+    /**
+     * Returns the hash of the profile picture in the blob store, or null if it was never stored.
+     */
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    /**
+     * Sets the hash of the profile picture in the blob store.
+     */
+    public void setImageHash(String imageHash) {
+        this.imageHash = imageHash;
+    }
+
     /**
      * Returns the connection status of this user.
      */
@@ -53,6 +94,20 @@ public class User implements Serializable {
         this.connected = connected;
     }
 
+    /**
+     * Returns the sequence number of the last chat message this user's client received, or -1 if there is none.
+     */
+    public long getLastSequence() {
+        return lastSequence != null ? lastSequence : -1;
+    }
+
+    /**
+     * Sets the sequence number of the last chat message this user's client received.
+     */
+    public void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
     /**
      * Returns the friend list of this user.
      */
@@ -0,0 +1,135 @@
+package Both;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns messages into bytes on the wire and back for one connection.
+ * Client and server agree on a version in a small hello exchanged before the first message:
+ * the client sends MAGIC followed by the highest version it wants, and the server answers
+ * MAGIC followed by the version both of them will use.
+ */
+public abstract class WireFormat {
+    public static final byte[] MAGIC = {'C', 'R', 'o', 'D'};
+    public static final int LATEST_VERSION = BinaryWireFormat.DEFLATE_VERSION;
+
+    /**
+     * Encodes a message into the bytes to write to the socket.
+     */
+    public abstract byte[] encode(Message message) throws IOException;
+
+    /**
+     * Encodes a message that may be sent on many connections into the buffers to write to a channel.
+     * Formats that can share one encoding between connections return buffers backed by that encoding.
+     */
+    public ByteBuffer[] encode(OutgoingMessage message) throws IOException {
+        return new ByteBuffer[] {ByteBuffer.wrap(encode(message.getMessage()))};
+    }
+
+    /**
+     * Writes a message that may be sent on many connections to a blocking stream.
+     */
+    public void write(OutgoingMessage message, OutputStream out) throws IOException {
+        out.write(encode(message.getMessage()));
+    }
+
+    /**
+     * Reads the next message from a blocking stream.
+     */
+    public abstract Message read(InputStream in) throws IOException, ClassNotFoundException;
+
+    /**
+     * Decodes the next message from a buffer that may not hold all of it yet.
+     * Nothing is consumed from the buffer if the message is incomplete.
+     *
+     * @return the message, or null if more bytes are needed
+     */
+    public abstract Message decode(ByteBuffer buffer) throws IOException, ClassNotFoundException;
+
+    /**
+     * Creates the format for an agreed version.
+     *
+     * @param version the version from the hello
+     * @param resetAfterEachMessage whether version 0 should reset its object stream after every message
+     */
+    public static WireFormat forVersion(int version, boolean resetAfterEachMessage) throws IOException {
+        return forVersion(version, resetAfterEachMessage ? 1 : 0, 0);
+    }
+
+    /**
+     * Creates the format for an agreed version, where version 0 resets its object stream on a budget.
+     *
+     * @param resetMessages the number of messages version 0 writes between resets, or 0 for no limit
+     * @param resetBytes the number of bytes version 0 writes between resets, or 0 for no limit
+     */
+    public static WireFormat forVersion(int version, int resetMessages, long resetBytes) throws IOException {
+        if (version == SerializedWireFormat.VERSION) {
+            return new SerializedWireFormat(resetMessages, resetBytes);
+        } else if (version == BinaryWireFormat.VERSION) {
+            return new BinaryWireFormat();
+        } else if (version == BinaryWireFormat.DEFLATE_VERSION) {
+            return new BinaryWireFormat(true);
+        }
+        throw new IOException("Unsupported protocol version " + version);
+    }
+
+    /**
+     * Returns the hello bytes for the given version.
+     */
+    public static byte[] hello(int version) {
+        byte[] hello = new byte[MAGIC.length + 1];
+        System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+        hello[MAGIC.length] = (byte) version;
+        return hello;
+    }
+
+    /**
+     * Writes the hello for the given version.
+     */
+    public static void writeHello(OutputStream out, int version) throws IOException {
+        out.write(hello(version));
+        out.flush();
+    }
+
+    /**
+     * Reads a hello from a blocking stream.
+     *
+     * @return the version in the hello
+     */
+    public static int readHello(InputStream in) throws IOException {
+        for (byte magicByte : MAGIC) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            if ((byte) b != magicByte) {
+                throw new IOException("Not a chat client");
+            }
+        }
+        int version = in.read();
+        if (version == -1) {
+            throw new EOFException();
+        }
+        return version;
+    }
+
+    /**
+     * Reads a hello from a buffer that may not hold all of it yet.
+     *
+     * @return the version in the hello, or -1 if more bytes are needed
+     */
+    public static int readHello(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < MAGIC.length + 1) {
+            return -1;
+        }
+        for (byte magicByte : MAGIC) {
+            if (buffer.get() != magicByte) {
+                throw new IOException("Not a chat client");
+            }
+        }
+        return buffer.get() & 0xFF;
+    }
+}
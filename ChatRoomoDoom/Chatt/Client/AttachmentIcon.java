@@ -0,0 +1,60 @@
+package Client;
+
+import Both.Attachment;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * A thumbnail of an attached image that is only decoded the first time it is painted.
+ * Its size comes from the dimensions the attachment was sent with, so the chat can lay it out
+ * without touching the image's bytes. Only the thumbnail is kept once the image is decoded.
+ */
+public class AttachmentIcon implements Icon {
+    private BlobCache blobCache;
+    private String hash;
+    private int width;
+    private int height;
+    private Image thumbnail;
+
+    /**
+     * Constructs an AttachmentIcon for the cached blob with the given hash, fitted in a square of
+     * the given size. Without dimensions, e.g. for messages stored before they were sent, the icon fills the square.
+     */
+    public AttachmentIcon(BlobCache blobCache, String hash, Attachment attachment, int size) {
+        this.blobCache = blobCache;
+        this.hash = hash;
+        this.width = size;
+        this.height = size;
+        if (attachment != null && attachment.getWidth() > 0 && attachment.getHeight() > 0) {
+            double scale = Math.min((double) size / attachment.getWidth(), (double) size / attachment.getHeight());
+            width = Math.max(1, (int) Math.round(attachment.getWidth() * scale));
+            height = Math.max(1, (int) Math.round(attachment.getHeight() * scale));
+        }
+    }
+
+    /**
+     * Paints the thumbnail, decoding the image from the blob cache if it was not painted before.
+     */
+    @Override
+    public void paintIcon(Component c, Graphics g, int x, int y) {
+        if (thumbnail == null) {
+            byte[] data = blobCache.getBytes(hash);
+            if (data == null) {
+                return;
+            }
+            thumbnail = new ImageIcon(data).getImage().getScaledInstance(width, height, Image.SCALE_SMOOTH);
+        }
+        g.drawImage(thumbnail, x, y, c);
+    }
+
+    @Override
+    public int getIconWidth() {
+        return width;
+    }
+
+    @Override
+    public int getIconHeight() {
+        return height;
+    }
+}
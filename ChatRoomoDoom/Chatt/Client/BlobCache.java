@@ -0,0 +1,196 @@
+package Client;
+
+import Both.Blobs;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the image blobs this client has seen, on disk by hash and the most recently shown ones decoded in memory.
+ * Blobs are only decoded when an image is asked for, not when they arrive.
+ * Messages only carry the hash of their images, so before a message is shown its images may have to
+ * be fetched from the server. Actions that wait for blobs run in the order they were added, so the
+ * chat keeps the order the messages arrived in.
+ */
+public class BlobCache {
+    private static final int MEMORY_ENTRIES = 256;
+
+    private Path directory;
+    private Consumer<String> requester;
+    private HashSet<String> requested = new HashSet<>();
+    private HashSet<String> missing = new HashSet<>();
+    private ArrayDeque<Waiting> waiting = new ArrayDeque<>();
+    private LinkedHashMap<String, ImageIcon> images = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImageIcon> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+
+    /**
+     * Constructs a BlobCache storing blobs in the specified directory.
+     * Blobs that are not cached are asked for with the requester.
+     */
+    public BlobCache(String directoryPath, Consumer<String> requester) {
+        this.directory = Paths.get(directoryPath);
+        this.requester = requester;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            System.out.println("Error in creating blob cache");
+        }
+    }
+
+    /**
+     * Adds a blob to the cache.
+     *
+     * @return the hash of the blob
+     */
+    public synchronized String put(byte[] data) {
+        String hash = Blobs.hash(data);
+        try {
+            Path file = directory.resolve(hash);
+            if (!Files.exists(file)) {
+                Files.write(file, data);
+            }
+        } catch (IOException e) {
+            System.out.println("Error in caching blob");
+            images.put(hash, new ImageIcon(data)); // keep it in memory at least
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the file a blob is cached in, which may not exist.
+     */
+    public Path getFile(String hash) throws IOException {
+        if (!Blobs.isHash(hash)) {
+            throw new IOException("Invalid blob hash");
+        }
+        return directory.resolve(hash);
+    }
+
+    /**
+     * Checks if a blob is cached.
+     */
+    public synchronized boolean contains(String hash) {
+        return Blobs.isHash(hash) && (images.containsKey(hash) || Files.exists(directory.resolve(hash)));
+    }
+
+    /**
+     * Returns the bytes of a cached blob, or null if it is not cached.
+     */
+    public synchronized byte[] getBytes(String hash) {
+        try {
+            return Blobs.isHash(hash) ? Files.readAllBytes(directory.resolve(hash)) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a cached image, or an empty image if it is not cached.
+     */
+    public synchronized ImageIcon getImage(String hash) {
+        ImageIcon image = images.get(hash);
+        if (image == null) {
+            byte[] data = getBytes(hash);
+            if (data == null) {
+                return new ImageIcon();
+            }
+            image = new ImageIcon(data);
+            images.put(hash, image);
+        }
+        return image;
+    }
+
+    /**
+     * Runs the action once every blob in hashes is cached or known to be missing, fetching the
+     * ones that are not cached. Null hashes are ignored.
+     */
+    public synchronized void whenAvailable(Collection<String> hashes, Runnable action) {
+        HashSet<String> needed = new HashSet<>();
+        for (String hash : hashes) {
+            if (hash != null && !isResolved(hash)) {
+                needed.add(hash);
+                if (requested.add(hash)) {
+                    requester.accept(hash);
+                }
+            }
+        }
+        waiting.add(new Waiting(needed, action));
+        runReadyActions();
+    }
+
+    /**
+     * Asks again for the blobs that waiting actions still need. Requests and answers that were in
+     * flight are lost with a broken connection, so this is called once the client has connected again.
+     */
+    public synchronized void requestPending() {
+        requested.clear();
+        for (Waiting next : waiting) {
+            for (String hash : next.hashes) {
+                if (!isResolved(hash) && requested.add(hash)) {
+                    requester.accept(hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a blob sent by the server. Data that is null or does not match the hash marks the blob as missing.
+     */
+    public synchronized void received(String hash, byte[] data) {
+        requested.remove(hash);
+        if (data != null && Blobs.hash(data).equals(hash)) {
+            put(data);
+        } else {
+            missing.add(hash);
+        }
+        runReadyActions();
+    }
+
+    /**
+     * Runs waiting actions from the front of the queue until one still needs a blob.
+     */
+    private void runReadyActions() {
+        while (!waiting.isEmpty()) {
+            Waiting next = waiting.peek();
+            next.hashes.removeIf(this::isResolved);
+            if (!next.hashes.isEmpty()) {
+                return;
+            }
+            waiting.poll();
+            next.action.run();
+        }
+    }
+
+    /**
+     * Checks if a blob is cached or will never be, because the server does not have it or the hash is invalid.
+     */
+    private boolean isResolved(String hash) {
+        return !Blobs.isHash(hash) || images.containsKey(hash) || missing.contains(hash) || Files.exists(directory.resolve(hash));
+    }
+
+    /**
+     * An action waiting for blobs to arrive.
+     */
+    private static class Waiting {
+        private HashSet<String> hashes;
+        private Runnable action;
+
+        private Waiting(HashSet<String> hashes, Runnable action) {
+            this.hashes = hashes;
+            this.action = action;
+        }
+    }
+}
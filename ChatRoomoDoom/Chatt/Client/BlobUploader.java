@@ -0,0 +1,139 @@
+package Client;
+
+import Both.BlobChunkMessage;
+import Both.BlobOffsetMessage;
+import Both.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Uploads blobs to the server in chunks on its own thread, reading them from the blob cache one chunk at a time.
+ * Every chunk is a message of its own, so chat messages sent meanwhile go out between the chunks.
+ * Before uploading, the uploader asks the server how much of the blob it already has, so an upload
+ * cut off by a lost connection continues where it stopped once the client has reconnected.
+ * A message that references the blob can be given along and is sent once the upload is complete.
+ */
+public class BlobUploader implements Runnable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long ANSWER_TIMEOUT = 10000;
+    private static final long RETRY_DELAY = 2000;
+    private static final int ATTEMPTS = 5;
+
+    private BlobCache blobCache;
+    private Supplier<ServerConnection> connection;
+    private LinkedBlockingQueue<Upload> uploads = new LinkedBlockingQueue<>();
+    private HashMap<String, Long> offsets = new HashMap<>();
+
+    /**
+     * Constructs a BlobUploader and starts its thread. The connection is looked up for every message,
+     * as the client replaces it when it reconnects.
+     */
+    public BlobUploader(BlobCache blobCache, Supplier<ServerConnection> connection) {
+        this.blobCache = blobCache;
+        this.connection = connection;
+        Thread thread = new Thread(this, "uploader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a cached blob for upload.
+     *
+     * @param then the message to send once the blob is uploaded, or null
+     */
+    public void upload(String hash, Message then) {
+        uploads.add(new Upload(hash, then));
+    }
+
+    /**
+     * Takes the server's answer to the question how much of a blob it has.
+     */
+    public synchronized void offsetReceived(String hash, long offset) {
+        offsets.put(hash, offset);
+        notifyAll();
+    }
+
+    /**
+     * Uploads the queued blobs one after the other, trying a few times if the connection is lost.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Upload upload = uploads.take();
+                for (int attempt = 1; attempt <= ATTEMPTS && !send(upload); attempt++) {
+                    Thread.sleep(RETRY_DELAY);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the part of the blob the server does not have yet, followed by the message waiting for it.
+     *
+     * @return true if the upload is done or cannot be done at all, false if it should be tried again
+     */
+    private boolean send(Upload upload) throws InterruptedException {
+        try (FileChannel file = FileChannel.open(blobCache.getFile(upload.hash), StandardOpenOption.READ)) {
+            long length = file.size();
+            long offset = askOffset(upload.hash);
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            while (offset < length) {
+                chunk.clear();
+                int count = file.read(chunk, offset);
+                connection.get().sendMessage(new BlobChunkMessage(upload.hash, offset, length, Arrays.copyOf(chunk.array(), count)));
+                offset += count;
+            }
+            if (upload.then != null) {
+                connection.get().sendMessage(upload.then);
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            System.out.println("Blob to upload is not cached: " + upload.hash);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Upload interrupted, trying again");
+            return false;
+        }
+    }
+
+    /**
+     * Asks the server how much of the blob it has and waits for the answer.
+     */
+    private synchronized long askOffset(String hash) throws IOException, InterruptedException {
+        offsets.remove(hash);
+        connection.get().sendMessage(new BlobOffsetMessage(hash, -1));
+        long deadline = System.currentTimeMillis() + ANSWER_TIMEOUT;
+        while (!offsets.containsKey(hash)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IOException("No answer from server");
+            }
+            wait(remaining);
+        }
+        return offsets.remove(hash);
+    }
+
+    /**
+     * A blob waiting to be uploaded and the message to send after it.
+     */
+    private static class Upload {
+        private String hash;
+        private Message then;
+
+        private Upload(String hash, Message then) {
+            this.hash = hash;
+            this.then = then;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package Client;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Paints one message of the chat: the sender's profile picture above the time, then the sender's
+ * name with the text and the image sent with the message. The same components paint every row, so
+ * the chat holds no components per message. Scaled pictures are kept for as long as the picture is
+ * in use, as the same profile picture is shown next to many messages.
+ */
+public class ChatCellRenderer extends JPanel implements ListCellRenderer<ChatEntry> {
+    private static final long serialVersionUID = 1L;
+    private static final int PROFILE_SIZE = 30;
+    private static final int IMAGE_SIZE = 50;
+
+    private JLabel profileLabel = new JLabel();
+    private JLabel timeLabel = new JLabel();
+    private JLabel textLabel = new JLabel();
+    private JLabel imageLabel = new JLabel();
+    private Map<ImageIcon, Icon> scaledProfiles = new WeakHashMap<>();
+    private Map<Icon, Icon> scaledImages = new WeakHashMap<>();
+
+    /**
+     * Constructs a ChatCellRenderer and lays out its components.
+     */
+    public ChatCellRenderer() {
+        setLayout(new BoxLayout(this, BoxLayout.X_AXIS));
+        setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        JPanel imageTimePanel = new JPanel();
+        imageTimePanel.setLayout(new BoxLayout(imageTimePanel, BoxLayout.Y_AXIS));
+        imageTimePanel.setOpaque(false);
+        profileLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        timeLabel.setFont(new Font("Arial", Font.PLAIN, 10));
+        timeLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        imageTimePanel.add(profileLabel);
+        imageTimePanel.add(timeLabel);
+
+        add(imageTimePanel);
+        add(textLabel);
+        add(imageLabel);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends ChatEntry> list, ChatEntry entry, int index, boolean isSelected, boolean cellHasFocus) {
+        profileLabel.setIcon(scaledProfiles.computeIfAbsent(entry.getProfilePicture(),
+                picture -> new ImageIcon(picture.getImage().getScaledInstance(PROFILE_SIZE, PROFILE_SIZE, Image.SCALE_SMOOTH))));
+        timeLabel.setText(entry.getTime());
+        textLabel.setText(entry.getName() + ": " + (entry.getText() != null ? entry.getText() : ""));
+
+        Icon image = entry.getImage();
+        if (image instanceof ImageIcon imageIcon) {
+            // an AttachmentIcon already has its thumbnail size
+            image = scaledImages.computeIfAbsent(imageIcon,
+                    icon -> new ImageIcon(imageIcon.getImage().getScaledInstance(IMAGE_SIZE, IMAGE_SIZE, Image.SCALE_SMOOTH)));
+        }
+        imageLabel.setIcon(image);
+
+        setBackground(list.getBackground());
+        return this;
+    }
+}
@@ -0,0 +1,73 @@
+package Client;
+
+import javax.swing.*;
+
+/**
+ * One message as the chat shows it: who sent it, when, its text and its image.
+ * The sequence number is the message's place in the server's message store, which orders the chat
+ * and tells pages of history apart from messages already shown.
+ */
+public class ChatEntry {
+    private long sequence;
+    private String name;
+    private ImageIcon profilePicture;
+    private String text;
+    private String time;
+    private Icon image;
+
+    /**
+     * Constructs a new ChatEntry.
+     *
+     * @param image the image sent with the message, or null if there is none
+     */
+    public ChatEntry(long sequence, String name, ImageIcon profilePicture, String text, String time, Icon image) {
+        this.sequence = sequence;
+        this.name = name;
+        this.profilePicture = profilePicture;
+        this.text = text;
+        this.time = time;
+        this.image = image;
+    }
+
+    /**
+     * Returns the sequence number of the message, or -1 if it has none.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the name of the sender.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the sender's profile picture.
+     */
+    public ImageIcon getProfilePicture() {
+        return profilePicture;
+    }
+
+    /**
+     * Returns the text of the message.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the time shown with the message.
+     */
+    public String getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the image sent with the message, or null if there is none.
+     */
+    public Icon getImage() {
+        return image;
+    }
+}
@@ -0,0 +1,103 @@
+package Client;
+
+import javax.swing.*;
+import java.util.List;
+
+/**
+ * The list model of the chat, holding at most a fixed number of messages in a ring buffer.
+ * Appending a message to a full chat drops the oldest one, so every message costs the same no
+ * matter how long the chat has been running. Older messages are loaded again from the server's
+ * history when the chat is scrolled up; they are put in front and the newest messages make room for them.
+ */
+public class ChatListModel extends AbstractListModel<ChatEntry> {
+    private static final long serialVersionUID = 1L;
+    private ChatEntry[] entries;
+    private int head;
+    private int size;
+
+    /**
+     * Constructs a ChatListModel holding at most the given number of messages.
+     */
+    public ChatListModel(int capacity) {
+        entries = new ChatEntry[capacity];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public ChatEntry getElementAt(int index) {
+        return entries[(head + index) % entries.length];
+    }
+
+    /**
+     * Appends a message, dropping the oldest one if the chat is full.
+     *
+     * @return true if the oldest message was dropped
+     */
+    public boolean add(ChatEntry entry) {
+        boolean dropped = size == entries.length;
+        if (dropped) {
+            entries[head] = null;
+            head = (head + 1) % entries.length;
+            size--;
+            fireIntervalRemoved(this, 0, 0);
+        }
+        entries[(head + size) % entries.length] = entry;
+        size++;
+        fireIntervalAdded(this, size - 1, size - 1);
+        return dropped;
+    }
+
+    /**
+     * Puts older messages, oldest first, in front of the chat. Messages that are not older than the
+     * oldest one shown are skipped, and the newest messages are dropped to make room if the chat is full.
+     *
+     * @return how many messages were put in front
+     */
+    public int addOlder(List<ChatEntry> older) {
+        long oldest = size > 0 ? getElementAt(0).getSequence() : Long.MAX_VALUE;
+        int count = 0;
+        while (count < older.size() && (oldest < 0 || older.get(count).getSequence() < oldest)) {
+            count++;
+        }
+        int first = Math.max(0, count - entries.length); // only the newest of them fit
+
+        int inserted = count - first;
+        int dropped = Math.max(0, size + inserted - entries.length);
+        if (dropped > 0) {
+            for (int i = size - dropped; i < size; i++) {
+                entries[(head + i) % entries.length] = null;
+            }
+            size -= dropped;
+            fireIntervalRemoved(this, size, size + dropped - 1);
+        }
+        if (inserted == 0) {
+            return 0;
+        }
+
+        head = (head - inserted + entries.length) % entries.length;
+        for (int i = 0; i < inserted; i++) {
+            entries[(head + i) % entries.length] = older.get(first + i);
+        }
+        size += inserted;
+        fireIntervalAdded(this, 0, inserted - 1);
+        return inserted;
+    }
+
+    /**
+     * Removes every message.
+     */
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        int removed = size;
+        entries = new ChatEntry[entries.length];
+        head = 0;
+        size = 0;
+        fireIntervalRemoved(this, 0, removed - 1);
+    }
+}
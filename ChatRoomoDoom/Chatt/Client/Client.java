@@ -1,15 +1,31 @@
 package Client;
 
+import Both.AckMessage;
+import Both.BlobMessage;
+import Both.BlobOffsetMessage;
+import Both.BlobRequestMessage;
+import Both.Blobs;
 import Both.ClientUpdateMessage;
+import Both.HistoryMessage;
+import Both.HistoryRequestMessage;
 import Both.MmsMessage;
+import Both.PresenceDeltaMessage;
+import Both.PresenceRequestMessage;
 import Both.User;
 
 import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * Represents a client in the chat application that connects to a server, manages user interactions,
@@ -20,11 +36,24 @@ public class Client extends Thread {
 
     private User user;
     private Socket socket;
-    private ServerConnection serverConnection;
+    private volatile ServerConnection serverConnection;
     private DataManager dataManager;
-    private HashMap<String, User> userList;
+    private HashMap<String, User> userList = new HashMap<>();
+    private long presenceVersion = -1;
+    private boolean snapshotRequested;
     private MainFrame mainFrame;
     private String filePath;
+    private BlobCache blobCache;
+    private HashSet<String> uploadedBlobs = new HashSet<>();
+    private BlobUploader uploader;
+    private static final int ACK_EVERY = 32;
+    private static final long ACK_INTERVAL = 5000;
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY = 2000;
+    private static final int HISTORY_PAGE = 50;
+    private long ackedSequence = -1;
+    private int unackedMessages;
+    private volatile boolean closing;
 
     /**
      * Constructs a new Client instance, initializes the user interface, and connects to the server.
@@ -34,16 +63,27 @@ public class Client extends Thread {
             mainFrame = new MainFrame(this);
             String userName = mainFrame.requestUserName();
             dataManager = new DataManager();
+            blobCache = new BlobCache("blob_cache", this::requestBlob);
+            uploader = new BlobUploader(blobCache, () -> serverConnection);
             boolean exists = readData(userName); // check if the user exists in the saved data
             if (!exists) {
                 String imagePath = mainFrame.profilePicChooser();
                 user = new User(userName, imagePath); // create a new user
+                storeProfilePicture(imagePath);
+            } else if (user.getImageHash() == null || blobCache.getBytes(user.getImageHash()) == null) {
+                storeProfilePicture(null);
             }
-            socket = new Socket("localhost", 4455); // connect to the server
-            serverConnection = new ServerConnection(socket);
-            serverConnection.sendMessage(new ClientUpdateMessage(user)); // TCP handshake - Clients stretches hand
+            connect();
+            requestHistory(user.getLastSequence() >= 0 ? user.getLastSequence() + 1 : -1);
             Read read = new Read(); // declare the read thread
             read.start();           // start it
+            Timer ackTimer = new Timer("ack", true);
+            ackTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    acknowledge();
+                }
+            }, ACK_INTERVAL, ACK_INTERVAL);
         } catch (IOException e) {
             JOptionPane.showMessageDialog(mainFrame, "Failed to connect to server", "Connection Error", JOptionPane.ERROR_MESSAGE);
             throw new RuntimeException(e);
@@ -51,29 +91,226 @@ public class Client extends Thread {
     }
 
     /**
-     * Updates the user list with the provided list of users. Adds new users to the UI if they are not
-     * already present.
+     * Connects to the server and introduces the user. The hello carries the sequence number of the
+     * last chat message received, so the server sends again whatever was lost since then.
      */
-    private void setUserList(HashMap<String, User> userList) {
-        if (this.userList == null) {
-            for (HashMap.Entry<String, User> entry : userList.entrySet()) {
-                mainFrame.getUserPanel().addUserToAllUsers(entry.getValue().getImage(), entry.getValue().getUserName());
+    private void connect() throws IOException {
+        socket = new Socket("localhost", 4455); // connect to the server
+        serverConnection = new ServerConnection(socket);
+        ClientUpdateMessage hello = new ClientUpdateMessage(user);
+        hello.setResumeSequence(user.getLastSequence());
+        serverConnection.sendMessage(hello); // TCP handshake - Clients stretches hand
+        synchronized (this) {
+            uploadedBlobs.clear();
+            ackedSequence = user.getLastSequence();
+            unackedMessages = 0;
+        }
+        uploadBlob(user.getImageHash());
+        blobCache.requestPending();
+    }
+
+    /**
+     * Asks the server for a blob. A request that cannot be sent is sent again once the client has connected again.
+     */
+    private void requestBlob(String hash) {
+        try {
+            serverConnection.sendMessage(new BlobRequestMessage(hash));
+        } catch (RuntimeException e) {
+            System.out.println("Error in requesting blob, connection lost?");
+        }
+    }
+
+    /**
+     * Connects again after the connection to the server was lost, a few times before giving up.
+     *
+     * @return true if the client is connected again
+     */
+    private boolean reconnect() {
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS && !closing; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+                connect();
+                return true;
+            } catch (Exception e) {
+                System.out.println("Reconnect attempt " + attempt + " failed");
             }
-        } else {
-            for (HashMap.Entry<String, User> entry : userList.entrySet()) {
-                if (!this.userList.containsKey(entry.getKey())) {
-                    mainFrame.getUserPanel().addUserToAllUsers(entry.getValue().getImage(), entry.getValue().getUserName());
+        }
+        return false;
+    }
+
+    /**
+     * Asks the server for a page of the newest messages the user sent or received before a cursor.
+     * On startup the cursor is just after the last message this client received, so a restarted client
+     * shows the chat it left, and the messages after that are sent again on connecting.
+     *
+     * @param before the sequence number the messages must come before, or -1 for the newest messages
+     */
+    public void requestHistory(long before) {
+        serverConnection.sendMessage(new HistoryRequestMessage(new ArrayList<>(), before, HISTORY_PAGE));
+    }
+
+    /**
+     * Shows a page of history in the chat, once all of its images are cached, so the page keeps its order.
+     */
+    private void showHistory(HistoryMessage history) {
+        ArrayList<String> hashes = new ArrayList<>();
+        for (MmsMessage message : history.getMessages()) {
+            hashes.add(message.getSender().getImageHash());
+            hashes.add(message.getImageHash());
+        }
+        blobCache.whenAvailable(hashes, () -> {
+            ArrayList<ChatEntry> entries = new ArrayList<>();
+            for (MmsMessage message : history.getMessages()) {
+                entries.add(toChatEntry(message, message.getServerTime()));
+            }
+            mainFrame.getMessagePanel().historyReceived(entries, history.getNextCursor());
+        });
+    }
+
+    /**
+     * Makes the chat's entry for a message whose images are cached, or known to be missing.
+     */
+    private ChatEntry toChatEntry(MmsMessage message, String time) {
+        Icon image = message.getImage();
+        if (message.getImageHash() != null) {
+            // Decoded only once the chat paints it
+            image = blobCache.contains(message.getImageHash()) ? new AttachmentIcon(blobCache, message.getImageHash(), message.getAttachment(), 50) : null;
+        }
+        return new ChatEntry(message.getSequence(), message.getSender().getUserName(), getProfilePicture(message.getSender()), message.getText(), time, image);
+    }
+
+    /**
+     * Remembers a received chat message and acknowledges it once enough messages have arrived since the last ack.
+     */
+    private void received(MmsMessage message) {
+        if (message.getSequence() < 0) {
+            return;
+        }
+        synchronized (this) {
+            user.setLastSequence(message.getSequence());
+            unackedMessages++;
+        }
+        if (unackedMessages >= ACK_EVERY) {
+            acknowledge();
+        }
+    }
+
+    /**
+     * Tells the server the last chat message received, if it was not acknowledged yet.
+     */
+    private void acknowledge() {
+        long sequence;
+        synchronized (this) {
+            sequence = user.getLastSequence();
+            if (sequence == ackedSequence) {
+                return;
+            }
+            ackedSequence = sequence;
+            unackedMessages = 0;
+        }
+        try {
+            serverConnection.sendMessage(new AckMessage(sequence));
+        } catch (RuntimeException e) {
+            System.out.println("Error in sending ack");
+        }
+    }
+
+    /**
+     * Applies a snapshot of the online users from the server, which replaces the user list.
+     */
+    private void applyPresence(ClientUpdateMessage snapshot) {
+        if (snapshot.getUserList() != null) {
+            setUserList(snapshot.getUserList());
+            presenceVersion = snapshot.getPresenceVersion();
+            snapshotRequested = false;
+        }
+    }
+
+    /**
+     * Applies the joins and leaves of a presence delta to the user list. Deltas that are not newer
+     * than the list are ignored, and if a delta skips a version the client asks for a new snapshot.
+     */
+    private void applyPresence(PresenceDeltaMessage delta) {
+        if (presenceVersion < 0 || delta.getPresenceVersion() <= presenceVersion) {
+            return; // the snapshot we have or are about to get already includes it
+        }
+        if (delta.getPresenceVersion() > presenceVersion + 1 && !snapshotRequested) {
+            snapshotRequested = true;
+            serverConnection.sendMessage(new PresenceRequestMessage());
+        }
+        presenceVersion = delta.getPresenceVersion();
+
+        for (User changed : delta.getChanges()) {
+            if (changed.getConnected()) {
+                if (userList.put(changed.getUserName(), changed) == null) {
+                    mainFrame.getUserPanel().addUserToAllUsers(getProfilePicture(changed), changed.getUserName());
                 }
+            } else if (userList.remove(changed.getUserName()) != null) {
+                mainFrame.getUserPanel().removeFromAllUsers(changed.getUserName());
             }
         }
     }
 
+    /**
+     * Replaces the user list with the provided list of users. Adds new users to the UI if they are not
+     * already present and removes the ones that are no longer online.
+     */
+    private void setUserList(HashMap<String, User> userList) {
+        for (HashMap.Entry<String, User> entry : userList.entrySet()) {
+            if (!this.userList.containsKey(entry.getKey())) {
+                mainFrame.getUserPanel().addUserToAllUsers(getProfilePicture(entry.getValue()), entry.getValue().getUserName());
+            }
+        }
+        for (String userName : this.userList.keySet()) {
+            if (!userList.containsKey(userName)) {
+                mainFrame.getUserPanel().removeFromAllUsers(userName);
+            }
+        }
+        this.userList = userList;
+    }
+
     /**
      * Updates the friend list with the provided list of friends.
      */
     private void setFriendList(HashMap<String, User> friendList) {
         for (HashMap.Entry<String, User> entry : friendList.entrySet()) {
-            mainFrame.getUserPanel().addUserToFriends(entry.getValue().getUserName(), entry.getValue().getImage());
+            mainFrame.getUserPanel().addUserToFriends(entry.getValue().getUserName(), getProfilePicture(entry.getValue()));
+        }
+    }
+
+    /**
+     * Returns the profile picture of a user, from the blob cache if the picture is stored there.
+     */
+    private ImageIcon getProfilePicture(User user) {
+        if (user.getImageHash() == null) {
+            return user.getImage();
+        }
+        return blobCache.getImage(user.getImageHash());
+    }
+
+    /**
+     * Stores the user's profile picture in the blob cache, so only its hash is sent with the user.
+     * A new user's picture is stored as the chosen file, a saved user's picture is stored as PNG.
+     */
+    private void storeProfilePicture(String imagePath) {
+        try {
+            byte[] data = imagePath != null ? Files.readAllBytes(Paths.get(imagePath)) : Blobs.toImageBytes(user.getImage());
+            if (data != null) {
+                user.setImageHash(blobCache.put(data));
+            }
+        } catch (IOException e) {
+            System.out.println("Error in storing profile picture");
+        }
+    }
+
+    /**
+     * Uploads a blob to the server unless it was already uploaded on this connection.
+     * The upload runs in chunks on the uploader's thread, and the server is asked first how much of
+     * the blob it has, so a blob it already has costs a single question.
+     */
+    private synchronized void uploadBlob(String hash) {
+        if (hash != null && uploadedBlobs.add(hash)) {
+            uploader.upload(hash, null);
         }
     }
 
@@ -82,10 +319,11 @@ public class Client extends Thread {
      */
     public void disconnect() {
         try {
+            closing = true;
+            acknowledge();
             user.setConnected(false);
             serverConnection.sendMessage(new ClientUpdateMessage(user));
-            serverConnection.getOos().close();
-            serverConnection.getOis().close();
+            serverConnection.close();
             socket.close();
             saveData();
             System.exit(0);
@@ -158,10 +396,26 @@ public class Client extends Thread {
             return; //
         }
 
-        MmsMessage message = new MmsMessage(text, filePath, user, receivers);
-
+        MmsMessage message;
+        try {
+            message = new MmsMessage(text, filePath, user, receivers);
+        } catch (IOException e) {
+            mainFrame.showMessage("Could not read the image " + filePath);
+            return;
+        }
         filePath = "";
 
+        if (message.getAttachment() != null) {
+            // The file's own bytes are uploaded, the message only carries their hash, type and size,
+            // and it is sent once the upload is done, while other messages go out meanwhile
+            String hash = blobCache.put(message.getAttachment().getData());
+            message.getAttachment().setData(null);
+            synchronized (this) {
+                uploadedBlobs.add(hash);
+            }
+            uploader.upload(hash, message);
+            return;
+        }
         serverConnection.sendMessage(message);
     }
 
@@ -179,7 +433,7 @@ public class Client extends Thread {
         if (!user.getFriendList().containsKey(userName) && !userName.equals(user.getUserName())) {
             User newFriend = userList.get(userName);
             user.addFriend(userName, newFriend);
-            mainFrame.getUserPanel().addUserToFriends(newFriend.getUserName(), newFriend.getImage());
+            mainFrame.getUserPanel().addUserToFriends(newFriend.getUserName(), getProfilePicture(newFriend));
         } else if (userName.equals(user.getUserName())) {
             mainFrame.showMessage("I get it! You love yourself, but you can't be friends with yourself.");
         } else {
@@ -203,18 +457,42 @@ public class Client extends Thread {
         public void run() {
             while (true) {
                 Object object = serverConnection.readMessage();
+                if (object == null && !closing && reconnect()) {
+                    continue;
+                }
                 if (object instanceof MmsMessage message) {
+                    received(message);
                     DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm");
                     LocalDateTime ldt = LocalDateTime.now();
                     String clientTime = dtf.format(ldt);
                     message.setClientTime(clientTime);
-                    mainFrame.getMessagePanel().addMessageToChat(message.getSender().getUserName(), message.getSender().getImage(), message.getText(), message.getClientTime(), message.getImage());
+                    // Images are only referenced by hash, show the message once they are cached
+                    blobCache.whenAvailable(Arrays.asList(message.getSender().getImageHash(), message.getImageHash()),
+                            () -> mainFrame.getMessagePanel().addMessageToChat(toChatEntry(message, message.getClientTime())));
+                } else if (object instanceof HistoryMessage history) {
+                    showHistory(history);
                 } else if (object instanceof ClientUpdateMessage cu) {
-                    setUserList(cu.getUserList());
-                    userList = cu.getUserList();
-                    if (!cu.getUser().getConnected()) {
-                        mainFrame.getUserPanel().removeFromAllUsers(cu.getUser().getUserName());
+                    if (cu.getUser().getUserName().equals(user.getUserName())) {
+                        user.setId(cu.getUser().getId()); // the server's echo of our own join carries our id
+                    }
+                    ArrayList<String> hashes = new ArrayList<>();
+                    hashes.add(cu.getUser().getImageHash());
+                    if (cu.getUserList() != null) {
+                        for (User listed : cu.getUserList().values()) {
+                            hashes.add(listed.getImageHash());
+                        }
+                    }
+                    blobCache.whenAvailable(hashes, () -> applyPresence(cu));
+                } else if (object instanceof PresenceDeltaMessage delta) {
+                    ArrayList<String> hashes = new ArrayList<>();
+                    for (User changed : delta.getChanges()) {
+                        hashes.add(changed.getImageHash());
                     }
+                    blobCache.whenAvailable(hashes, () -> applyPresence(delta));
+                } else if (object instanceof BlobOffsetMessage answer) {
+                    uploader.offsetReceived(answer.getHash(), answer.getOffset());
+                } else if (object instanceof BlobMessage blob) {
+                    blobCache.received(blob.getHash(), blob.getData());
                 } else {
                     break;
                 }
@@ -2,18 +2,34 @@ package Client;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Represents the chat panel in the client application where users can send and receive messages and images.
  * This panel includes input fields, buttons, and message display areas.
+ * The messages are shown in a list that only paints the rows in view and holds at most MAX_MESSAGES
+ * of them, so each new message costs the same however long the chat has run. Scrolling to the top
+ * loads older messages from the server's history, and if they pushed the newest messages out,
+ * scrolling back to the bottom loads the newest messages again.
  */
 public class MessagePanel {
-    private JPanel messagePanel, singleMessagePanel, imageTimePanel;
+    private static final int MAX_MESSAGES = 500;
+    private static final int ROW_HEIGHT = 72;
+
+    private JPanel messagePanel;
     private MainFrame mainFrame;
     private JButton sendButton, sendImageButton;
     private JTextField messageField;
     private JScrollPane messageWindow;
     private Client client;
+    private ChatListModel chat = new ChatListModel(MAX_MESSAGES);
+    private JList<ChatEntry> chatList;
+    private long olderCursor = -1;
+    private boolean historyPending;
+    private boolean loadingNewest;
+    private boolean atNewest = true;
+    private ArrayList<ChatEntry> arrivedWhileLoading = new ArrayList<>();
 
     /**
      * Constructs a new MessagePanel with the specified MainFrame and Client.
@@ -35,13 +51,15 @@ public class MessagePanel {
         messagePanel.setLayout(null);
         messagePanel.setVisible(true);
 
-        JPanel messagePanel = new JPanel();
-        messagePanel.setLayout(new BoxLayout(messagePanel, BoxLayout.Y_AXIS));
-        messagePanel.setBackground(Color.WHITE);
+        chatList = new JList<>(chat);
+        chatList.setCellRenderer(new ChatCellRenderer());
+        chatList.setFixedCellHeight(ROW_HEIGHT); // rows are not measured, so adding one does not lay out the others
+        chatList.setBackground(Color.WHITE);
 
-        messageWindow = new JScrollPane(messagePanel);
+        messageWindow = new JScrollPane(chatList);
         messageWindow.setBounds(5, 5, 440, 400);
         messageWindow.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        messageWindow.getVerticalScrollBar().addAdjustmentListener(e -> loadAtScrollEnds());
         this.messagePanel.add(messageWindow);
 
         messageField = new JFormattedTextField();
@@ -81,54 +99,6 @@ public class MessagePanel {
         messagePanel.add(sendImageButton);
     }
 
-    /**
-     * Adds a message to the chat display area.
-     * Updates the UI to show the new message along with any associated image and timestamp.
-     */
-    public void addMessageToChat(String name, ImageIcon image, String message, String currentTime, ImageIcon imageToSend) {
-        if (message != null && !message.isEmpty()) {
-            singleMessagePanel = new JPanel();
-            singleMessagePanel.setLayout(new BoxLayout(singleMessagePanel, BoxLayout.X_AXIS));
-            singleMessagePanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-            singleMessagePanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-
-            imageTimePanel = new JPanel();
-            imageTimePanel.setLayout(new BoxLayout(imageTimePanel, BoxLayout.Y_AXIS));
-            imageTimePanel.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-            ImageIcon originalIcon = image;
-            Image scaledImage = originalIcon.getImage().getScaledInstance(30, 30, Image.SCALE_SMOOTH);
-            JLabel imageLabel = new JLabel(new ImageIcon(scaledImage));
-            imageLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-            imageTimePanel.add(imageLabel);
-
-            JLabel timeLabel = new JLabel(currentTime);
-            timeLabel.setFont(new Font("Arial", Font.PLAIN, 10));
-            timeLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-            imageTimePanel.add(timeLabel);
-
-            singleMessagePanel.add(imageTimePanel);
-
-            JLabel textLabel = new JLabel(name + ": " + message);
-            textLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-            singleMessagePanel.add(textLabel);
-
-            JPanel messageContainer = (JPanel) messageWindow.getViewport().getView();
-            messageContainer.add(singleMessagePanel);
-            messageContainer.add(Box.createRigidArea(new Dimension(0, 10)));
-            messageContainer.revalidate();
-            messageContainer.repaint();
-
-            JScrollBar verticalBar = messageWindow.getVerticalScrollBar();
-            verticalBar.setValue(verticalBar.getMaximum());
-        }
-
-        // Display image if present
-        if (imageToSend != null) {
-            sendImage(name, image, currentTime, imageToSend);
-        }
-    }
-
     /**
      * Retrieves the text from the message input field and clears it.
      *
@@ -139,53 +109,130 @@ public class MessagePanel {
         messageField.setText("");
         return text;
     }
-
     /**
-     * Displays an image in the chat panel.
-     * Adds the image along with the sender's profile image and timestamp to the chat display area.
+     * Adds a message to the bottom of the chat, scrolling down to it if the chat was scrolled to the bottom.
+     * Messages without text or image are not shown. May be called from any thread.
      */
-    public void sendImage(String name, ImageIcon pic, String time, ImageIcon imageToSend) {
-        ImageIcon imageIcon = imageToSend;
-        Image scaledImage = imageIcon.getImage().getScaledInstance(50, 50, Image.SCALE_SMOOTH);
-        ImageIcon scaledIcon = new ImageIcon(scaledImage);
-
-        singleMessagePanel = new JPanel();
-        singleMessagePanel.setLayout(new BoxLayout(singleMessagePanel, BoxLayout.X_AXIS));
-        singleMessagePanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-        singleMessagePanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-
-        imageTimePanel = new JPanel();
-        imageTimePanel.setLayout(new BoxLayout(imageTimePanel, BoxLayout.Y_AXIS));
-        imageTimePanel.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-        ImageIcon profileIcon = new ImageIcon(pic.getImage().getScaledInstance(30, 30, Image.SCALE_SMOOTH));
-        JLabel imageLabel = new JLabel(profileIcon);
-        imageLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-        imageTimePanel.add(imageLabel);
+    public void addMessageToChat(ChatEntry entry) {
+        if ((entry.getText() == null || entry.getText().isEmpty()) && entry.getImage() == null) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> append(entry));
+    }
 
-        JLabel timeLabel = new JLabel(time);
-        timeLabel.setFont(new Font("Arial", Font.PLAIN, 10));
-        timeLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-        imageTimePanel.add(timeLabel);
+    /**
+     * Shows a page of history from the server, oldest first: either older messages for the top of the
+     * chat, or the newest messages that replace the chat. May be called from any thread.
+     *
+     * @param nextCursor the cursor for the messages before the page, or -1 if there are none
+     */
+    public void historyReceived(List<ChatEntry> entries, long nextCursor) {
+        SwingUtilities.invokeLater(() -> {
+            olderCursor = nextCursor;
+            JScrollBar verticalBar = messageWindow.getVerticalScrollBar();
+            if (loadingNewest) {
+                loadingNewest = false;
+                atNewest = true;
+                chat.clear();
+                chat.addOlder(entries);
+                for (ChatEntry entry : arrivedWhileLoading) {
+                    if (entry.getSequence() > lastSequence()) {
+                        chat.add(entry);
+                    }
+                }
+                arrivedWhileLoading.clear();
+                afterLayout(() -> scrollToBottom());
+                return;
+            }
 
-        singleMessagePanel.add(imageTimePanel);
+            boolean follow = chat.getSize() == 0 || isAtBottom();
+            int shown = chat.getSize();
+            int inserted = chat.addOlder(entries);
+            if (shown + inserted > chat.getSize()) {
+                atNewest = false; // the newest messages made room and are loaded again at the bottom
+            }
+            afterLayout(() -> {
+                if (follow && atNewest) {
+                    scrollToBottom();
+                } else {
+                    verticalBar.setValue(verticalBar.getValue() + inserted * ROW_HEIGHT); // keep the same rows in view
+                }
+            });
+        });
+    }
 
-        JLabel textLabel = new JLabel(name + ": ");
-        textLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+    /**
+     * Appends a message on the event thread. A message arriving while the chat does not show the newest
+     * messages is left out, as it comes with them when they are loaded again.
+     */
+    private void append(ChatEntry entry) {
+        if (loadingNewest) {
+            arrivedWhileLoading.add(entry);
+            return;
+        }
+        if (!atNewest) {
+            return;
+        }
+        boolean follow = isAtBottom();
+        if (chat.add(entry) && !follow) {
+            JScrollBar verticalBar = messageWindow.getVerticalScrollBar();
+            verticalBar.setValue(verticalBar.getValue() - ROW_HEIGHT); // the rows in view moved up by one
+        }
+        if (follow) {
+            SwingUtilities.invokeLater(this::scrollToBottom);
+        }
+    }
 
-        JLabel sendImageLabel = new JLabel(scaledIcon);
-        sendImageLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+    /**
+     * Asks the server for older messages when the chat is scrolled to the top, or for the newest
+     * messages when it is scrolled to the bottom but they are not shown. One page is asked for at a time.
+     */
+    private void loadAtScrollEnds() {
+        if (historyPending || chat.getSize() == 0) {
+            return;
+        }
+        JScrollBar verticalBar = messageWindow.getVerticalScrollBar();
+        if (verticalBar.getValue() == verticalBar.getMinimum() && olderCursor >= 0) {
+            historyPending = true;
+            client.requestHistory(olderCursor);
+        } else if (!atNewest && isAtBottom()) {
+            historyPending = true;
+            loadingNewest = true;
+            client.requestHistory(-1);
+        }
+    }
 
-        singleMessagePanel.add(textLabel);
-        singleMessagePanel.add(sendImageLabel);
+    /**
+     * Runs an action once the list has been laid out for its new rows, then allows the next page of history.
+     */
+    private void afterLayout(Runnable action) {
+        SwingUtilities.invokeLater(() -> {
+            action.run();
+            historyPending = false;
+        });
+    }
 
-        JPanel messageContainer = (JPanel) messageWindow.getViewport().getView();
-        messageContainer.add(singleMessagePanel);
-        messageContainer.add(Box.createRigidArea(new Dimension(0, 10)));
-        messageContainer.revalidate();
-        messageContainer.repaint();
+    /**
+     * Returns the sequence number of the newest message shown, or -1 if there is none.
+     */
+    private long lastSequence() {
+        return chat.getSize() > 0 ? chat.getElementAt(chat.getSize() - 1).getSequence() : -1;
+    }
 
+    /**
+     * Checks if the chat is scrolled to the bottom, or nearly.
+     */
+    private boolean isAtBottom() {
         JScrollBar verticalBar = messageWindow.getVerticalScrollBar();
-        verticalBar.setValue(verticalBar.getMaximum());
+        return verticalBar.getValue() + verticalBar.getVisibleAmount() >= verticalBar.getMaximum() - ROW_HEIGHT / 2;
+    }
+
+    /**
+     * Scrolls the chat down to the newest message.
+     */
+    private void scrollToBottom() {
+        if (chat.getSize() > 0) {
+            chatList.ensureIndexIsVisible(chat.getSize() - 1);
+        }
     }
 }
@@ -1,25 +1,48 @@
 package Client;
 
+import Both.Message;
+import Both.WireFormat;
+
 import java.io.*;
 import java.net.Socket;
 
 /**
  * Manages the connection to the server by handling the input and output streams
- * for sending and receiving objects over a socket connection.
+ * for sending and receiving messages over a socket connection.
+ * The wire format is agreed with the server in a hello before the first message is sent.
+ * Sent messages are collected in a buffer that a flusher thread flushes shortly after the first of
+ * them, so messages sent together, like a burst of blob requests, go out in one socket write.
  */
 public class ServerConnection {
 
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    private OutputStream output;
+    private InputStream input;
+    private WireFormat format;
+    private long flushDelay = Long.getLong("chat.flushDelay", 1);
+    private boolean flushPending;
+    private boolean closed;
 
     /**
      * Constructs a ServerConnection using the specified socket.
-     * Initializes the input and output streams for communication with the server.
+     * Initializes the streams and asks the server for the protocol version set with "chat.protocol",
+     * the newest version by default.
      */
     public ServerConnection(Socket socket) {
         try {
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
+            output = new BufferedOutputStream(socket.getOutputStream());
+            input = new BufferedInputStream(socket.getInputStream());
+
+            int wantedVersion = Integer.getInteger("chat.protocol", WireFormat.LATEST_VERSION);
+            WireFormat.writeHello(output, wantedVersion);
+            int version = WireFormat.readHello(input);
+            if (version > wantedVersion) {
+                throw new IOException("Server picked unsupported protocol version " + version);
+            }
+            format = WireFormat.forVersion(version, true);
+
+            Thread flusher = new Thread(this::flushMessages, "flusher");
+            flusher.setDaemon(true);
+            flusher.start();
         } catch (IOException e) {
             System.out.println("Error in initializing streams");
             throw new RuntimeException(e);
@@ -27,12 +50,17 @@ public class ServerConnection {
     }
 
     /**
-     * Sends an object to the server using the output stream.
+     * Sends a message to the server using the output stream. The message is flushed by the flusher
+     * thread, at most the flush delay set with "chat.flushDelay" later.
+     * Synchronized because the read thread also sends, when it asks for blobs.
      */
-    public void sendMessage(Object object) {
+    public synchronized void sendMessage(Message message) {
         try {
-            oos.writeObject(object);
-            oos.reset();
+            output.write(format.encode(message));
+            if (!flushPending) {
+                flushPending = true;
+                notifyAll();
+            }
         } catch (IOException e) {
             System.out.println("Error in sending message");
             throw new RuntimeException(e);
@@ -40,13 +68,34 @@ public class ServerConnection {
     }
 
     /**
-     * Reads an object from the server using the input stream.
+     * Flushes the sent messages, waiting the flush delay after the first of them for more to send with it.
+     */
+    private synchronized void flushMessages() {
+        try {
+            while (!closed) {
+                if (!flushPending) {
+                    wait();
+                } else {
+                    if (flushDelay > 0) {
+                        wait(flushDelay); // other senders can add to the buffer meanwhile
+                    }
+                    output.flush();
+                    flushPending = false;
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("Error in flushing messages");
+        }
+    }
+
+    /**
+     * Reads a message from the server using the input stream.
      *
-     * @return the object read from the server, or null if an I/O error occurs
+     * @return the message read from the server, or null if an I/O error occurs
      */
     public Object readMessage() {
         try {
-            return ois.readObject();
+            return format.read(input);
         } catch (IOException e) {
             return null;
         } catch (ClassNotFoundException e) {
@@ -56,16 +105,12 @@ public class ServerConnection {
     }
 
     /**
-     * Gets the ObjectOutputStream used for sending objects to the server.
-     */
-    public ObjectOutputStream getOos() {
-        return oos;
-    }
-
-    /**
-     * Gets the ObjectInputStream used for receiving objects from the server.
+     * Closes the streams used for communication with the server.
      */
-    public ObjectInputStream getOis() {
-        return ois;
+    public synchronized void close() throws IOException {
+        closed = true;
+        notifyAll();
+        output.close();
+        input.close();
     }
 }
@@ -0,0 +1,180 @@
+package Server;
+
+import Both.Blobs;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores images once, in a file named by the SHA-256 hash of their bytes.
+ * Messages and users only carry the hash, so an avatar that is in thousands of messages is stored a
+ * single time. Files are spread over sub directories named by the first two digits of the hash,
+ * and written to a temporary file first so a blob is either complete or missing.
+ * Blobs uploaded in chunks are appended to a part file as the chunks arrive, so they are never held in
+ * memory as a whole. The part file survives a lost connection and a restart, so an upload can be continued,
+ * and it becomes the blob once it is complete and its bytes match the hash.
+ */
+public class BlobStore {
+    private Path directory;
+    private ReentrantLock[] uploadLocks = new ReentrantLock[64];
+
+    /**
+     * Constructs a BlobStore keeping its files in the specified directory.
+     */
+    public BlobStore(String directoryPath) {
+        this.directory = Paths.get(directoryPath);
+        for (int i = 0; i < uploadLocks.length; i++) {
+            uploadLocks[i] = new ReentrantLock();
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            System.err.println("Error in opening blob store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stores a blob under its hash unless it is already stored.
+     *
+     * @return the hash of the blob
+     */
+    public String put(byte[] data) throws IOException {
+        String hash = Blobs.hash(data);
+        Path file = blobPath(hash);
+        if (Files.exists(file)) {
+            return hash;
+        }
+
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), hash, ".tmp");
+        try {
+            Files.write(temp, data);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Another connection stored the same blob first
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return hash;
+    }
+
+    /**
+     * Stores a blob uploaded under the given hash, after checking that the hash matches its bytes.
+     */
+    public void put(String hash, byte[] data) throws IOException {
+        if (data == null || !Blobs.hash(data).equals(hash)) {
+            throw new IOException("Blob does not match its hash " + hash);
+        }
+        put(data);
+    }
+
+    /**
+     * Returns how many bytes of a blob the store has, which is where an upload of it continues.
+     *
+     * @return the length of the stored blob, the length of its part file, or 0
+     */
+    public long getUploadOffset(String hash) throws IOException {
+        if (!Blobs.isHash(hash)) {
+            throw new IOException("Invalid blob hash");
+        }
+        Path file = blobPath(hash);
+        if (Files.exists(file)) {
+            return Files.size(file);
+        }
+        Path part = partPath(hash);
+        return Files.exists(part) ? Files.size(part) : 0;
+    }
+
+    /**
+     * Appends a chunk of an upload to the blob's part file. Chunks that do not start where the part file
+     * ends are ignored, as they were already received or an earlier one is missing.
+     * The last chunk completes the blob, once its bytes are found to match the hash.
+     */
+    public void append(String hash, long offset, long length, byte[] data) throws IOException {
+        if (!Blobs.isHash(hash) || data == null || length > ServerConfig.getMaxBlobBytes() || offset + data.length > length) {
+            throw new IOException("Invalid blob chunk for " + hash);
+        }
+        ReentrantLock lock = uploadLocks[Math.floorMod(hash.hashCode(), uploadLocks.length)];
+        lock.lock();
+        try {
+            Path file = blobPath(hash);
+            if (Files.exists(file)) {
+                return;
+            }
+            Files.createDirectories(file.getParent());
+            Path part = partPath(hash);
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (channel.size() != offset) {
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+            }
+            if (offset + data.length == length) {
+                complete(hash, part, file);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Turns a complete part file into the blob, or deletes it if its bytes do not match the hash.
+     */
+    private void complete(String hash, Path part, Path file) throws IOException {
+        String actual;
+        try (InputStream in = Files.newInputStream(part)) {
+            actual = Blobs.hash(in);
+        }
+        if (!actual.equals(hash)) {
+            Files.delete(part);
+            throw new IOException("Blob does not match its hash " + hash);
+        }
+        try {
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(part); // stored by a single upload meanwhile
+        }
+    }
+
+    /**
+     * Returns the bytes of a blob.
+     *
+     * @return the bytes, or null if there is no blob with this hash
+     */
+    public byte[] get(String hash) throws IOException {
+        if (!Blobs.isHash(hash)) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(blobPath(hash));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the path of the blob with the given hash.
+     */
+    private Path blobPath(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Returns the path of the part file of a blob that is being uploaded in chunks.
+     */
+    private Path partPath(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash + ".part");
+    }
+}
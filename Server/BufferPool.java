@@ -0,0 +1,51 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps a pool of equally sized read buffers for one event loop.
+ * A connection only holds a buffer while it has unread bytes, so idle clients cost no buffer memory.
+ * The pool is only used from its event loop thread and is therefore not synchronized.
+ */
+public class BufferPool {
+    private ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private int bufferSize;
+    private int maxPooled;
+
+    /**
+     * Constructs a BufferPool handing out buffers of the given size and keeping at most maxPooled idle ones.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if the pool is empty.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that were grown past the pool size are left to the garbage collector.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && buffers.size() < maxPooled) {
+            buffer.clear();
+            buffers.push(buffer);
+        }
+    }
+
+    /**
+     * Returns the size of the buffers handed out by this pool.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
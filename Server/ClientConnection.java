@@ -1,25 +1,52 @@
 package Server;
 
 import Both.Message;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import Both.OutgoingMessage;
+import Both.WireFormat;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Handles the communication between the server and a connected client.
  * Manages receiving messages from the client and sending messages to the client.
+ * Reading and writing each have their own connection thread, so a client that reads slowly only
+ * delays its own messages. Written messages are collected in a buffer and flushed together, once no
+ * more are waiting or the first of them has waited for the flush delay, so a burst of messages
+ * goes out in a few large socket writes instead of one small write each.
  */
-public class ClientConnection extends Thread {
+public class ClientConnection implements Runnable, Connection {
     private ClientHandler client;
-    private ObjectInputStream reader;
-    private ObjectOutputStream writer;
+    private InputStream reader;
+    private OutputStream writer;
+    private OutputStream socketOutput;
+    private WireFormat format;
+    private ReentrantLock writeLock = new ReentrantLock();
+    private Condition messagesWaiting = writeLock.newCondition();
+    private boolean closed;
+    private long flushDelay = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getFlushDelay());
 
     /**
-     * Constructs a ClientConnection with the specified input and output streams and client handler.
+     * Constructs a ClientConnection with the specified input and output streams and the wire format agreed in the handshake.
      */
-    public ClientConnection(ObjectInputStream reader, ObjectOutputStream writer, ClientHandler client) {
-        this.client = client;
+    public ClientConnection(InputStream reader, OutputStream writer, WireFormat format) {
         this.reader = reader;
-        this.writer = writer;
+        this.socketOutput = writer;
+        this.writer = new BufferedOutputStream(writer, ServerConfig.getWriteBufferSize());
+        this.format = format;
+    }
+
+    /**
+     * Attaches the connection to its client handler and starts reading and writing on connection threads.
+     */
+    @Override
+    public void open(ClientHandler client) {
+        this.client = client;
+        ConnectionThreads.execute(this);
+        ConnectionThreads.execute(this::writeMessages);
     }
 
     /**
@@ -30,27 +57,117 @@ public class ClientConnection extends Thread {
     public void run() {
         try {
             while (true) {
-                Object object = reader.readObject();
-                Server.newMessage((Message) object);
+                Message message = format.read(reader);
+                Server.newMessage(message, client);
             }
         } catch (Exception e) {
             System.out.println("Error in reading message, disconnected?");
+        } finally {
+            close();
         }
     }
 
     /**
-     * Sends any waiting messages to the client if they are connected.
-     * This method is synchronized to ensure thread safety when sending messages.
+     * Wakes up the writer thread to send the client's waiting messages.
+     * Guarded by a lock instead of synchronized, so virtual threads are not pinned.
      */
-    public synchronized void sendWaitingMessages() {
+    @Override
+    public void sendWaitingMessages() {
+        writeLock.lock();
         try {
-            if (client.getUser().getConnected()) {
-                for (int i = 0; i < client.getMessagesToSend().size(); i++) {
-                    writer.writeObject(client.getMessagesToSend().remove(i));
+            messagesWaiting.signal();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the client's waiting messages in order while the client is connected.
+     * A message only leaves the queue once it is written to the buffer. Messages lost in the buffer
+     * when the connection breaks are sent again on the client's next connection, as the client has not
+     * acknowledged them.
+     */
+    private void writeMessages() {
+        long flushDeadline = 0; // when the buffered messages must be flushed, 0 while none are buffered
+        try {
+            while (true) {
+                boolean flush;
+                writeLock.lock();
+                try {
+                    while (!closed && !hasMessagesWaiting()) {
+                        if (flushDeadline == 0) {
+                            messagesWaiting.await();
+                        } else if (messagesWaiting.awaitNanos(flushDeadline - System.nanoTime()) <= 0) {
+                            break;
+                        }
+                    }
+                    if (closed || client.getConnection() != this) {
+                        return;
+                    }
+                    flush = flushDeadline != 0 && (!hasMessagesWaiting() || System.nanoTime() - flushDeadline >= 0);
+                } finally {
+                    writeLock.unlock();
+                }
+
+                if (flush) {
+                    writer.flush();
+                    flushDeadline = 0;
+                    continue;
+                }
+                OutgoingMessage message = client.getMessagesToSend().peek();
+                if (message == null) {
+                    Thread.yield();
+                    continue;
+                }
+                format.write(message, writer);
+                client.getMessagesToSend().poll();
+                if (flushDeadline == 0) {
+                    flushDeadline = System.nanoTime() + flushDelay;
                 }
             }
         } catch (Exception e) {
             System.out.println("Error in client handler sending waiting messages");
+            close();
         }
     }
+
+    /**
+     * Checks if the client is connected and has messages waiting. Called with the write lock held,
+     * so the queue is only checked without reading its mailbox; the writer thread reads the mailbox
+     * when it peeks at the next message after letting go of the lock.
+     */
+    private boolean hasMessagesWaiting() {
+        return client.getUser().getConnected() && !client.getMessagesToSend().isEmpty();
+    }
+
+    /**
+     * Closes the socket and stops the writer thread. Also called once reading fails.
+     * The socket's own stream is closed rather than the buffer, as closing the buffer flushes it and
+     * would wait for a writer thread that is stuck writing to a client that does not read. Closing
+     * the socket makes that write fail, which ends the writer thread, and unsent messages are lost
+     * with the buffer like on any broken connection.
+     */
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            closed = true;
+            messagesWaiting.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            socketOutput.close();
+        } catch (Exception e) {
+            System.out.println("Error in closing client socket");
+        }
+    }
+
+    /**
+     * Returns the wire format agreed in the handshake.
+     */
+    @Override
+    public WireFormat getFormat() {
+        return format;
+    }
 }
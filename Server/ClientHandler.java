@@ -1,19 +1,35 @@
 package Server;
 
 import Both.*;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Handles the connection and communication for a single client.
  * Manages the client's state, message queue, and interaction with other clients.
  */
 public class ClientHandler {
+    private static final int HANDSHAKE_LOCK_STRIPES = 64;
+    private static final ReentrantLock[] handshakeLocks = new ReentrantLock[HANDSHAKE_LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < HANDSHAKE_LOCK_STRIPES; i++) {
+            handshakeLocks[i] = new ReentrantLock();
+        }
+    }
+
     private User user;
-    private ArrayList<Message> messagesToSend = new ArrayList<>();
-    private ClientConnection connection;
+    private OutboundQueue messagesToSend;
+    private OverflowPolicy overflowPolicy = ServerConfig.getOverflowPolicy();
+    private volatile Connection connection;
 
     /**
      * Constructs a ClientHandler and checks if the client is new.
@@ -22,18 +38,68 @@ public class ClientHandler {
         checkIfClientIsNew(client);
     }
 
+    /**
+     * Constructs a ClientHandler for a client whose handshake has already been read, as done by the NIO event loops.
+     */
+    public ClientHandler(ClientUpdateMessage hello, Connection connection) {
+        checkIfClientIsNew(hello, connection);
+    }
+
     /**
      * Sends a message to the client. The message is added to the queue and sent when possible.
      */
-    public synchronized void sendMessage(Message message) {
+    public void sendMessage(Message message) {
+        sendMessage(new OutgoingMessage(message));
+    }
+
+    /**
+     * Sends a message that is also sent to other clients, reusing its shared encoding.
+     * The message is only queued here, the connection writes it on its own time, so a slow client
+     * never holds up the thread that routes the message. If the queue is full the overflow policy decides.
+     * Messages for a client that is offline go straight to its mailbox on disk, so they take no memory
+     * however long the client stays away.
+     */
+    public void sendMessage(OutgoingMessage message) {
         try {
-            messagesToSend.add(message);
+            if (!user.getConnected()) {
+                messagesToSend.spill(message);
+            } else if (!messagesToSend.offer(message)) {
+                overflow(message);
+            }
             connection.sendWaitingMessages();
         } catch (Exception e) {
-            System.out.println("Error in sending message");
+            System.out.println("Error in sending message to " + user.getUserName() + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Handles a message that did not fit in the full queue.
+     */
+    private void overflow(OutgoingMessage message) {
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            messagesToSend.spill(message);
+        } else if (overflowPolicy == OverflowPolicy.DROP_PRESENCE && message.getMessage() instanceof PresenceDeltaMessage) {
+            messagesToSend.holdPresence(message);
+        } else {
+            messagesToSend.drop();
+            disconnect();
+        }
+    }
+
+    /**
+     * Disconnects a client that does not keep up with its messages and tells the others it left.
+     */
+    private void disconnect() {
+        System.out.println("Disconnecting slow client: " + user.getUserName());
+        connection.close();
+
+        User left = new User(user.getUserName(), user.getImage());
+        left.setId(user.getId());
+        left.setImageHash(user.getImageHash());
+        left.setConnected(false);
+        Server.newMessage(new ClientUpdateMessage(left));
+    }
+
     /**
      * Retrieves the User associated with this client handler.
      *
@@ -44,15 +110,23 @@ public class ClientHandler {
     }
 
     /**
-     * Restarts the client handler with a new user, initializing a new ClientConnection.
+     * Restarts the client handler with a new user on the given connection.
+     * A client that received messages from an earlier run of the server gets the ones it missed
+     * from the message log first.
+     *
+     * @param resumeSequence the sequence number of the last message the client received, or -1
      */
-    public void restart(ObjectInputStream reader, ObjectOutputStream writer, User newUser) {
+    public void restart(Connection connection, User newUser, long resumeSequence) {
         System.out.println("New client: " + newUser.getUserName());
         this.user = newUser;
+        this.messagesToSend = new OutboundQueue(ServerConfig.getOutboundQueueSize(), Server.getMailboxStore().get(user.getId()), ServerConfig.getMailboxBatch());
+        if (resumeSequence >= 0) {
+            messagesToSend.replay(findMissedMessages(resumeSequence), true);
+        }
 
         try {
-            connection = new ClientConnection(reader, writer, this);
-            connection.start();
+            this.connection = connection;
+            connection.open(this);
 
             ClientUpdateMessage clientUpdate = new ClientUpdateMessage(user);
             Server.getClients().put(user.getUserName(), this);
@@ -63,14 +137,18 @@ public class ClientHandler {
     }
 
     /**
-     * Restarts the client handler with existing user information, initializing a new ClientConnection.
+     * Restarts the client handler with existing user information on the given connection.
+     * The messages sent on the old connection after the last one the client received are sent again first.
+     *
+     * @param resumeSequence the sequence number of the last message the client received, or -1
      */
-    public void restart(ObjectInputStream reader, ObjectOutputStream writer) {
+    public void restart(Connection connection, long resumeSequence) {
         System.out.println("Old client: " + user.getUserName());
         try {
-            connection = new ClientConnection(reader, writer, this);
+            this.connection = connection; // the old connection stops taking messages before the lost ones are collected
+            messagesToSend.replay(readMessages(messagesToSend.takeUnacknowledged(resumeSequence)), false);
             user.setConnected(true);
-            connection.start();
+            connection.open(this);
 
             ClientUpdateMessage clientUpdate = new ClientUpdateMessage(user);
             Server.newMessage(clientUpdate);
@@ -83,34 +161,134 @@ public class ClientHandler {
 
     /**
      * Checks if the client is new or reconnecting and initializes the appropriate connection.
+     * The wire format is negotiated first: the client's hello names the newest protocol version it
+     * speaks and the server answers with the version both will use. A client that has not sent its
+     * ClientUpdateMessage when the handshake timeout is over, or whose handshake fails, is disconnected.
+     * The timeout is a deadline for the whole handshake rather than a read timeout, so a client cannot
+     * keep a handshake thread by sending a byte now and then.
      */
     public void checkIfClientIsNew(Socket client) {
+        ScheduledFuture<?> deadline = ConnectionThreads.schedule(() -> closeQuietly(client), ServerConfig.getHandshakeTimeout());
         try {
-            ObjectInputStream reader = new ObjectInputStream(client.getInputStream());
-            ObjectOutputStream writer = new ObjectOutputStream(client.getOutputStream());
+            InputStream reader = new BufferedInputStream(client.getInputStream());
+            OutputStream writer = client.getOutputStream();
+
+            int version = Math.min(WireFormat.readHello(reader), ServerConfig.getProtocolVersion());
+            WireFormat.writeHello(writer, version);
+            WireFormat format = WireFormat.forVersion(version, ServerConfig.getResetMessages(), ServerConfig.getResetBytes());
+
+            ClientUpdateMessage message = (ClientUpdateMessage) format.read(reader);
+            if (!deadline.cancel(false)) {
+                throw new SocketTimeoutException("Handshake deadline passed");
+            }
+            checkIfClientIsNew(message, new ClientConnection(reader, writer, format));
+
+        } catch (Exception e) {
+            if (!deadline.cancel(false) && !deadline.isCancelled()) {
+                System.out.println("Handshake timed out, disconnecting client");
+            } else {
+                System.out.println("Error in client handler");
+                e.printStackTrace();
+            }
+            closeQuietly(client);
+        }
+    }
 
-            ClientUpdateMessage message = (ClientUpdateMessage) reader.readObject();
-            User tempUser = message.getUser();
+    /**
+     * Closes the socket of a client whose handshake failed.
+     */
+    private static void closeQuietly(Socket client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            System.out.println("Error in closing client socket");
+        }
+    }
 
-            if (Server.getClients().containsKey(tempUser.getUserName())) {
-                Server.getClients().get(tempUser.getUserName()).restart(reader, writer);
+    /**
+     * Registers the user, then hands the connection to the existing handler of a reconnecting user,
+     * or restarts this handler for a new user with the user's profile from the registry.
+     * Handshakes of the same user name take turns, so two clients logging in with one name at once
+     * cannot both be taken for a new user. The names share a fixed set of locks picked by their hash,
+     * so no lock is kept per name that ever logged in.
+     */
+    public void checkIfClientIsNew(ClientUpdateMessage hello, Connection connection) {
+        User tempUser = hello.getUser();
+        User profile = Server.getUserRegistry().register(tempUser);
+        ReentrantLock handshakeLock = handshakeLocks[tempUser.getUserName().hashCode() & (HANDSHAKE_LOCK_STRIPES - 1)];
+        handshakeLock.lock();
+        try {
+            ClientHandler existing = Server.getClients().get(tempUser.getUserName());
+            if (existing != null) {
+                existing.restart(connection, hello.getResumeSequence());
                 return;
             }
 
-            restart(reader, writer, tempUser);
+            profile.setConnected(true);
+            restart(connection, profile, hello.getResumeSequence());
+        } finally {
+            handshakeLock.unlock();
+        }
+    }
 
+    /**
+     * Reads the messages with the given sequence numbers back from the message log, once the log has caught up with them.
+     * If it does not within the replay wait the messages are not replayed.
+     */
+    private List<OutgoingMessage> readMessages(List<Long> sequences) {
+        ArrayList<OutgoingMessage> messages = new ArrayList<>();
+        try {
+            if (sequences.isEmpty()) {
+                return messages;
+            }
+            if (!Server.getLogWriter().awaitLogged(sequences.get(sequences.size() - 1), ServerConfig.getReplayWait())) {
+                System.out.println("Message log did not catch up, not replaying " + sequences.size() + " missed messages to " + user.getUserName());
+                return messages;
+            }
+            for (long sequence : sequences) {
+                messages.add(new OutgoingMessage(MessageLogg.getMessage(sequence)));
+            }
         } catch (Exception e) {
-            System.out.println("Error in client handler");
-            e.printStackTrace();
+            System.err.println("Error in reading missed messages: " + e.getMessage());
         }
+        return messages;
     }
 
     /**
-     * Retrieves the list of messages waiting to be sent to the client.
+     * Searches the newest logged messages after the given one for those the user sent or received,
+     * for a client that last received messages from an earlier run of the server.
+     */
+    private List<OutgoingMessage> findMissedMessages(long resumeSequence) {
+        ArrayList<OutgoingMessage> messages = new ArrayList<>();
+        long next = MessageLogg.getNextSequence();
+        long first = Math.max(resumeSequence + 1, Math.max(next - ServerConfig.getMaxReplay(), MessageLogg.getFirstSequence()));
+        try {
+            for (long sequence = first; sequence < next; sequence++) {
+                MmsMessage message = MessageLogg.getMessage(sequence);
+                if (message.getSender().getUserName().equals(user.getUserName()) || message.getReceivers().containsKey(user.getUserName())) {
+                    messages.add(new OutgoingMessage(message));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Error in reading missed messages: " + e.getMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Retrieves the queue of messages waiting to be sent to the client.
+     * Any thread may add to it, only the client's current connection takes from it.
      *
-     * @return the ArrayList of Message objects waiting to be sent
+     * @return the OutboundQueue of messages waiting to be sent
      */
-    public ArrayList<Message> getMessagesToSend() {
+    public OutboundQueue getMessagesToSend() {
         return messagesToSend;
     }
+
+    /**
+     * Returns the connection the client is currently using.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
 }
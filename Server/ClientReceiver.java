@@ -9,6 +9,7 @@ import java.net.Socket;
  */
 public class ClientReceiver extends Thread {
     private ServerSocket serverSocket;
+    private HandshakeStage handshakes = new HandshakeStage();
 
     /**
      * Constructs a ClientReceiver object and starts listening on the specified port.
@@ -25,6 +26,7 @@ public class ClientReceiver extends Thread {
     /**
      * Runs the thread to accept client connections in a continuous loop.
      * For each connection, a new ClientHandler is created to manage the client's communication.
+     * The handshake runs on the handshake stage, so this thread only accepts.
      */
     @Override
     public void run() {
@@ -32,7 +34,7 @@ public class ClientReceiver extends Thread {
             try {
                 Socket newClient = serverSocket.accept();
                 System.out.println("Connected");
-                new ClientHandler(newClient);
+                handshakes.submit(newClient);
             } catch (Exception e) {
                 System.out.println("Error in accepting client, not connected");
                 e.printStackTrace();
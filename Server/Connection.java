@@ -0,0 +1,31 @@
+package Server;
+
+import Both.WireFormat;
+
+/**
+ * Represents the transport between the server and a single connected client.
+ * A ClientHandler only talks to its client through this interface, so the same routing code
+ * works both for blocking thread-per-client connections and for the NIO event loops.
+ */
+public interface Connection {
+
+    /**
+     * Attaches the connection to the client handler that owns it and starts receiving messages.
+     */
+    void open(ClientHandler client);
+
+    /**
+     * Sends any messages waiting in the client handler's queue to the client.
+     */
+    void sendWaitingMessages();
+
+    /**
+     * Closes the connection, for example to get rid of a client that does not keep up with its messages.
+     */
+    void close();
+
+    /**
+     * Returns the wire format agreed in the handshake, which also reports how much state it keeps for the connection.
+     */
+    WireFormat getFormat();
+}
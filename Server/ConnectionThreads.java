@@ -0,0 +1,52 @@
+package Server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the blocking work of client connections: the handshake and the reading loop.
+ * In VIRTUAL mode every task gets its own virtual thread, so idle clients blocked in a read
+ * only cost a small heap object instead of a whole platform thread stack.
+ * Deadlines of connections run on one shared timer thread.
+ */
+public class ConnectionThreads {
+    private static ExecutorService executor = createExecutor();
+    private static ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "connection-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Runs the task on its own connection thread.
+     */
+    public static void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Runs the task on the timer thread once the delay in milliseconds is over, unless it is cancelled first.
+     * The task must be short, as it holds up the deadlines after it.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor in VIRTUAL mode and a platform thread pool otherwise.
+     * The virtual thread executor is looked up reflectively so the server still starts on Java versions before 21.
+     */
+    private static ExecutorService createExecutor() {
+        if (ServerConfig.getMode() == ServerMode.VIRTUAL) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,117 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread in NIO mode. Each event loop owns a share of the client channels
+ * and does all reads and writes for them, so a few loops can serve thousands of clients.
+ * Other threads hand work to the loop through execute(), which wakes up the selector.
+ */
+public class EventLoop extends Thread {
+    private Selector selector;
+    private BufferPool bufferPool;
+    private HandshakeStage handshakes;
+    private RoutingStage routing;
+    private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructs an EventLoop with its own selector and read buffer pool, handing handshakes and
+     * decoded messages to the given stages.
+     */
+    public EventLoop(int number, HandshakeStage handshakes, RoutingStage routing) throws IOException {
+        super("event-loop-" + number);
+        this.handshakes = handshakes;
+        this.routing = routing;
+        selector = Selector.open();
+        bufferPool = new BufferPool(ServerConfig.getBufferSize(), ServerConfig.getPooledBuffers());
+    }
+
+    /**
+     * Hands a newly accepted channel to this loop. The channel is registered on the loop thread.
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.setKey(key);
+            } catch (IOException e) {
+                System.out.println("Error in registering client channel");
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the loop thread during the next turn of the loop.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the read buffer pool of this loop. Must only be used from the loop thread.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the stage that sets up the clients whose handshake this loop reads.
+     */
+    public HandshakeStage getHandshakes() {
+        return handshakes;
+    }
+
+    /**
+     * Returns the stage that routes the messages this loop decodes.
+     */
+    public RoutingStage getRouting() {
+        return routing;
+    }
+
+    /**
+     * Waits for ready channels and lets their connections read and write, running queued tasks in between.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Error in event loop");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs all tasks queued by other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
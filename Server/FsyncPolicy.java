@@ -0,0 +1,22 @@
+package Server;
+
+/**
+ * When the message log forces appended records to disk, chosen with the "chat.fsync" system property.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every record is forced to disk as soon as the log writer appends it. Safest and slowest.
+     * Messages are routed without waiting for the log writer, so a crash still loses those it had not reached.
+     */
+    ALWAYS,
+
+    /**
+     * Records are forced to disk together every "chat.fsyncIntervalMs" milliseconds, so a crash loses at most that window.
+     */
+    GROUP,
+
+    /**
+     * The operating system decides when written records reach the disk.
+     */
+    OS
+}
@@ -0,0 +1,89 @@
+package Server;
+
+import Both.ClientUpdateMessage;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the handshakes of accepted blocking clients, so the accept loop never waits for a client to speak.
+ * In NIO mode the event loops read the handshake and hand it over here, as setting up the client may
+ * wait for the message log and read missed messages back from it, which must not stall a loop.
+ * Handshakes run on a small pool of their own, or on virtual threads in VIRTUAL mode, and a client
+ * that says nothing for the handshake timeout is dropped. At most a limited number of handshakes may
+ * be pending at once; clients accepted beyond that are disconnected right away, so a login storm or
+ * a flood of silent connections cannot pile up work and memory.
+ */
+public class HandshakeStage {
+    private ExecutorService executor;
+    private AtomicInteger pending = new AtomicInteger();
+    private int maxPending = ServerConfig.getMaxPendingHandshakes();
+
+    /**
+     * Constructs a HandshakeStage for the server's connection mode.
+     */
+    public HandshakeStage() {
+        if (ServerConfig.getMode() != ServerMode.VIRTUAL) {
+            executor = Executors.newFixedThreadPool(ServerConfig.getHandshakeThreads());
+        }
+    }
+
+    /**
+     * Queues the handshake of an accepted client, or disconnects the client if too many handshakes are pending.
+     */
+    public void submit(Socket client) {
+        submit(() -> new ClientHandler(client), () -> {
+            try {
+                client.close();
+            } catch (IOException e) {
+                System.out.println("Error in closing client socket");
+            }
+        });
+    }
+
+    /**
+     * Queues the setup of an NIO client whose handshake the event loop has read, or disconnects the
+     * client if too many handshakes are pending.
+     */
+    public void submit(ClientUpdateMessage hello, NioConnection connection) {
+        submit(() -> new ClientHandler(hello, connection), connection::close);
+    }
+
+    /**
+     * Runs a handshake on the stage unless too many are pending, in which case the client is disconnected.
+     * A client whose handshake fails is disconnected too, so its connection is not left half set up.
+     */
+    private void submit(Runnable work, Runnable disconnect) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            System.out.println("Too many pending handshakes, disconnecting client");
+            disconnect.run();
+            return;
+        }
+
+        Runnable handshake = () -> {
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                System.out.println("Error in client handshake, disconnecting client: " + e.getMessage());
+                disconnect.run();
+            } finally {
+                pending.decrementAndGet();
+            }
+        };
+        if (executor == null) {
+            ConnectionThreads.execute(handshake);
+        } else {
+            executor.execute(handshake);
+        }
+    }
+
+    /**
+     * Returns how many handshakes are queued or running.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+}
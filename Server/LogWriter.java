@@ -0,0 +1,102 @@
+package Server;
+
+import Both.MessageLogg;
+import Both.OutgoingMessage;
+import Both.MmsMessage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends messages to the message log on its own thread, so routing a message never waits for the disk.
+ * Messages are written in the order they were submitted, which is the order they were stamped in.
+ * The store numbers its records by their place, so a message that cannot be appended is tried again
+ * before any later one; skipping it would store every later message under the sequence number the
+ * clients know the message before it by.
+ */
+public class LogWriter implements Runnable {
+    private static final long RETRY_MILLIS = 1000;
+
+    private LinkedBlockingQueue<OutgoingMessage> queue = new LinkedBlockingQueue<>();
+    private ReentrantLock loggedLock = new ReentrantLock();
+    private Condition messageLogged = loggedLock.newCondition();
+    private long loggedSequence = -1;
+
+    /**
+     * Constructs a LogWriter and starts its thread.
+     */
+    public LogWriter() {
+        Thread thread = new Thread(this, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a message to be appended to the message log.
+     */
+    public void submit(OutgoingMessage message) {
+        queue.add(message);
+    }
+
+    /**
+     * Returns how many messages are waiting to be written.
+     */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Waits until the message with the given sequence number has been appended to the message log.
+     *
+     * @return false if it was not appended within the timeout
+     */
+    public boolean awaitLogged(long sequence, long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        loggedLock.lock();
+        try {
+            while (loggedSequence < sequence) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = messageLogged.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            loggedLock.unlock();
+        }
+    }
+
+    /**
+     * Appends the queued messages to the message log, one at a time and in order.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                OutgoingMessage message = queue.take();
+                while (MessageLogg.addMessage(message) < 0) {
+                    Thread.sleep(RETRY_MILLIS);
+                }
+                logged(((MmsMessage) message.getMessage()).getSequence());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("Error in writing message log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting for a message up to the given sequence number to be logged.
+     */
+    private void logged(long sequence) {
+        loggedLock.lock();
+        try {
+            loggedSequence = sequence;
+            messageLogged.signalAll();
+        } finally {
+            loggedLock.unlock();
+        }
+    }
+}
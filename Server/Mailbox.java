@@ -0,0 +1,358 @@
+package Server;
+
+import Both.BinaryWireFormat;
+import Both.Message;
+import Both.OutgoingMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * The messages waiting on disk for one user, either because the user is offline or because the
+ * user's outbound queue overflowed.
+ * The mailbox is an append-only file of records, each holding the record's sequence number, its
+ * length, a CRC32C checksum over those and the frame, and the message's shared binary frame.
+ * A small cursor file remembers the sequence number and offset of the first record that was not
+ * delivered yet, so delivery picks up there after a restart. Messages are read back in batches, and
+ * the cursor only moves past a batch once every message of it has been delivered, so a batch lost
+ * with the server is sent again.
+ * Once all messages are delivered both files are deleted, and once the delivered records make up
+ * most of a large file they are cut off by copying the rest to a new file.
+ * Users in the frames are referenced by id and looked up in the user registry when a frame is read back.
+ * The file stays open for appending while messages keep coming, and is forced to disk as the
+ * FsyncPolicy says. The MailboxStore closes it once it has been idle for a while, so offline users do
+ * not hold on to file handles.
+ */
+public class Mailbox {
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private Path path;
+    private Path cursorPath;
+    private MailboxStore store;
+    private FsyncPolicy fsyncPolicy = ServerConfig.getFsyncPolicy();
+    private long compactBytes = ServerConfig.getMailboxCompactBytes();
+    private ReentrantLock lock = new ReentrantLock();
+    private BinaryWireFormat format = new BinaryWireFormat(Server.getUserRegistry()::get);
+    private FileChannel reader;
+    private FileChannel writer;
+    private boolean unsynced;
+    private long lastAppendMillis;
+    private long nextSequence;
+    private long readSequence;
+    private long readOffset;
+    private long deliveredSequence;
+    private long deliveredOffset;
+    private int undelivered;
+
+    /**
+     * Opens the mailbox at the specified path, finding the messages a previous run did not deliver.
+     * The store is told when the mailbox opens or closes its file for appending.
+     */
+    public Mailbox(Path path, MailboxStore store) {
+        this.path = path;
+        this.store = store;
+        this.cursorPath = path.resolveSibling(path.getFileName() + ".cursor");
+        try {
+            recover();
+        } catch (IOException e) {
+            System.err.println("Error in opening mailbox " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the cursor and scans the records after it, cutting off a torn tail at the first record
+     * that is incomplete or fails its checksum. If the file was compacted but the cursor not saved
+     * afterwards, the first record of the file is the one the cursor names.
+     */
+    private void recover() throws IOException {
+        if (Files.exists(cursorPath)) {
+            ByteBuffer cursor = ByteBuffer.wrap(Files.readAllBytes(cursorPath));
+            readSequence = cursor.getLong();
+            readOffset = cursor.getLong();
+        }
+        nextSequence = readSequence;
+        if (!Files.exists(path)) {
+            readOffset = 0;
+            markDelivered();
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            if (readOffset > 0 && fileSize >= RECORD_HEADER_LENGTH) {
+                channel.read(header, 0);
+                if (header.flip().getLong() == readSequence) {
+                    readOffset = 0;
+                }
+            }
+            long position = Math.min(readOffset, fileSize);
+            while (position + RECORD_HEADER_LENGTH <= fileSize) {
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                long sequence = header.getLong();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || position + RECORD_HEADER_LENGTH + length > fileSize) {
+                    break;
+                }
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                channel.read(frame, position + RECORD_HEADER_LENGTH);
+                frame.flip();
+                if (checksum(sequence, frame) != checksum) {
+                    break;
+                }
+                nextSequence = sequence + 1;
+                position += RECORD_HEADER_LENGTH + length;
+            }
+            if (position < fileSize) {
+                System.out.println("Truncating torn tail of " + path + " at byte " + position);
+                channel.truncate(position);
+            }
+        }
+        markDelivered();
+    }
+
+    /**
+     * Appends a message to the end of the mailbox, opening the file for appending if it is not open.
+     */
+    public void append(OutgoingMessage message) throws IOException {
+        ByteBuffer frame = message.getFrame();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        lock.lock();
+        try {
+            header.putLong(nextSequence).putInt(frame.remaining()).putInt(checksum(nextSequence, frame)).flip();
+            if (writer == null) {
+                Files.createDirectories(path.getParent());
+                writer = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                store.opened(this);
+            }
+            writer.write(new ByteBuffer[] {header, frame});
+            nextSequence++;
+            lastAppendMillis = System.currentTimeMillis();
+            unsynced = true;
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                writer.force(false);
+                unsynced = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the appended records to disk under the GROUP policy, and closes the file for appending
+     * once nothing was appended for the given time. Called periodically by the MailboxStore.
+     */
+    public void sync(long idleMillis) {
+        lock.lock();
+        try {
+            if (writer == null) {
+                return;
+            }
+            if (unsynced && fsyncPolicy == FsyncPolicy.GROUP) {
+                writer.force(false);
+                unsynced = false;
+            }
+            if (System.currentTimeMillis() - lastAppendMillis >= idleMillis) {
+                closeWriter();
+            }
+        } catch (IOException e) {
+            System.err.println("Error in syncing mailbox " + path + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the next batch of messages. The cursor stays before the batch until delivered() has
+     * been called for each of its messages.
+     *
+     * @return up to the given number of messages, none once all messages have been read
+     */
+    public List<Message> readBatch(int maxMessages) throws IOException {
+        lock.lock();
+        try {
+            ArrayList<Message> batch = new ArrayList<>();
+            if (readSequence == nextSequence) {
+                if (undelivered == 0) {
+                    clear();
+                }
+                return batch;
+            }
+
+            if (reader == null) {
+                reader = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            while (batch.size() < maxMessages && readSequence < nextSequence) {
+                header.clear();
+                reader.read(header, readOffset);
+                header.flip();
+                readSequence = header.getLong() + 1;
+                ByteBuffer frame = ByteBuffer.allocate(header.getInt());
+                reader.read(frame, readOffset + RECORD_HEADER_LENGTH);
+                frame.flip();
+                readOffset += RECORD_HEADER_LENGTH + frame.capacity();
+                batch.add(format.decode(frame));
+            }
+            undelivered += batch.size();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Confirms that a message of the last batch was handed to the client's connection. Once the
+     * whole batch is, the cursor is moved past it, and the files are deleted if nothing is left.
+     */
+    public void delivered() {
+        lock.lock();
+        try {
+            if (undelivered == 0 || --undelivered > 0) {
+                return;
+            }
+            markDelivered();
+            if (deliveredSequence == nextSequence) {
+                clear();
+            } else if (deliveredOffset >= compactBytes && deliveredOffset >= Files.size(path) - deliveredOffset) {
+                compact();
+            } else {
+                writeCursor();
+            }
+        } catch (IOException e) {
+            System.err.println("Error in saving mailbox cursor " + path + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many messages have not been read yet.
+     */
+    public long getWaiting() {
+        lock.lock();
+        try {
+            return nextSequence - readSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Throws away every message in the mailbox, used when its file cannot be read.
+     */
+    public void discard() {
+        lock.lock();
+        try {
+            clear();
+        } catch (IOException e) {
+            System.err.println("Error in deleting mailbox " + path + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts every message read so far as delivered.
+     */
+    private void markDelivered() {
+        deliveredSequence = readSequence;
+        deliveredOffset = readOffset;
+    }
+
+    /**
+     * Saves the sequence number and offset of the first record that was not delivered.
+     */
+    private void writeCursor() throws IOException {
+        ByteBuffer cursor = ByteBuffer.allocate(16);
+        cursor.putLong(deliveredSequence).putLong(deliveredOffset);
+        Files.write(cursorPath, cursor.array());
+    }
+
+    /**
+     * Cuts off the delivered records by copying the rest of the file to a new one that replaces it,
+     * then saves the cursor at its start. Called once every record read so far is delivered.
+     */
+    private void compact() throws IOException {
+        closeWriter();
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = deliveredOffset;
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+            if (fsyncPolicy != FsyncPolicy.OS) {
+                target.force(false);
+            }
+        }
+        Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        readOffset = 0;
+        markDelivered();
+        writeCursor();
+    }
+
+    /**
+     * Closes the file for appending, forcing it to disk first unless the operating system decides.
+     */
+    private void closeWriter() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        try {
+            if (unsynced && fsyncPolicy != FsyncPolicy.OS) {
+                writer.force(false);
+            }
+            unsynced = false;
+            writer.close();
+        } finally {
+            writer = null;
+            store.closed(this);
+        }
+    }
+
+    /**
+     * Computes the checksum of a record: its sequence number, its length and the remaining bytes of
+     * the frame, without moving the frame's position.
+     */
+    private static int checksum(long sequence, ByteBuffer frame) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(12).putLong(sequence).putInt(frame.remaining()).flip());
+        crc.update(frame.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Deletes the files of a mailbox whose messages have all been delivered.
+     */
+    private void clear() throws IOException {
+        closeWriter();
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(cursorPath);
+        readOffset = 0;
+        readSequence = 0;
+        nextSequence = 0;
+        undelivered = 0;
+        markDelivered();
+    }
+}
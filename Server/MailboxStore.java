@@ -0,0 +1,64 @@
+package Server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the mailboxes of all users, each in a file named by the user's id.
+ * A mailbox is opened the first time a message is left for its user or the user connects, and the
+ * same Mailbox is used from then on, so appends for a user never race with each other.
+ * The store keeps track of the mailboxes whose file is open for appending and periodically syncs them,
+ * closing the files of those that have been idle.
+ */
+public class MailboxStore {
+    private Path directory;
+    private ConcurrentHashMap<Integer, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private Set<Mailbox> open = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs a MailboxStore keeping its files in the specified directory and starts syncing the
+     * open mailboxes every "chat.fsyncIntervalMs" milliseconds.
+     */
+    public MailboxStore(String directoryPath) {
+        this.directory = Paths.get(directoryPath);
+
+        ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "mailbox-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = ServerConfig.getFsyncInterval();
+        long idleTime = ServerConfig.getMailboxIdleTime();
+        syncer.scheduleWithFixedDelay(() -> {
+            for (Mailbox mailbox : open) {
+                mailbox.sync(idleTime);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the mailbox of the user with the given id, opening it if needed.
+     */
+    public Mailbox get(int userId) {
+        return mailboxes.computeIfAbsent(userId, id -> new Mailbox(directory.resolve(id + ".dat"), this));
+    }
+
+    /**
+     * Remembers a mailbox that opened its file for appending. Called with the mailbox's lock held.
+     */
+    void opened(Mailbox mailbox) {
+        open.add(mailbox);
+    }
+
+    /**
+     * Forgets a mailbox that closed its file for appending. Called with the mailbox's lock held.
+     */
+    void closed(Mailbox mailbox) {
+        open.remove(mailbox);
+    }
+}
@@ -0,0 +1,46 @@
+package Server;
+
+import Both.MmsMessage;
+import Both.User;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Paints one row of the server's search results: the thumbnail of the message's image, if it has one,
+ * and a line with the message's date, text, sender and receivers. The same label paints every row,
+ * so the list holds no component per message.
+ */
+public class MessageCellRenderer extends JLabel implements ListCellRenderer<MmsMessage> {
+    private static final long serialVersionUID = 1L;
+    private ThumbnailLoader thumbnails;
+
+    /**
+     * Constructs a MessageCellRenderer showing the thumbnails of the given loader.
+     */
+    public MessageCellRenderer(ThumbnailLoader thumbnails) {
+        this.thumbnails = thumbnails;
+        setOpaque(true);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends MmsMessage> list, MmsMessage message, int index, boolean isSelected, boolean cellHasFocus) {
+        setIcon(thumbnails.get(message));
+
+        StringBuilder log = new StringBuilder();
+        log.append("Date: ").append(message.getServerTime())
+                .append(" | Message: ").append(message.getText())
+                .append(" | From: ").append(message.getSender().getUserName())
+                .append(" | To: ");
+        String separator = "";
+        for (User receiver : message.getReceivers().values()) {
+            log.append(separator).append(receiver.getUserName());
+            separator = ", ";
+        }
+        setText(log.toString());
+
+        setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+        setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+        return this;
+    }
+}
@@ -0,0 +1,103 @@
+package Server;
+
+import Both.MmsMessage;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.LongFunction;
+
+/**
+ * The list model of the server's search results. Results are read a page at a time off the event
+ * thread, and the next page is only read once the list asks for a row near the end of the rows it has,
+ * which a list with a fixed row height only does for the rows it shows. So a search with many results
+ * reads just the pages that are scrolled to.
+ */
+public class MessageListModel extends AbstractListModel<MmsMessage> {
+    private static final long serialVersionUID = 1L;
+    private static final int PREFETCH_ROWS = 100;
+
+    private ArrayList<MmsMessage> messages = new ArrayList<>();
+    private LongFunction<MessagePage> pageReader;
+    private long nextCursor = -1;
+    private boolean loading;
+    private int generation;
+
+    /**
+     * Replaces the results with those of a new query and reads its first page.
+     *
+     * @param pageReader reads the page at a cursor, -1 for the first page
+     */
+    public void search(LongFunction<MessagePage> pageReader) {
+        int removed = messages.size();
+        messages = new ArrayList<>();
+        generation++;
+        this.pageReader = pageReader;
+        nextCursor = -1;
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        readPage(-1);
+    }
+
+    @Override
+    public int getSize() {
+        return messages.size();
+    }
+
+    /**
+     * Returns the message in a row, reading the next page in the background when the row is close to the end.
+     */
+    @Override
+    public MmsMessage getElementAt(int index) {
+        if (index >= messages.size() - PREFETCH_ROWS && nextCursor >= 0 && !loading) {
+            readPage(nextCursor);
+        }
+        return messages.get(index);
+    }
+
+    /**
+     * Reads the page at a cursor on a worker thread and appends it once it is read, unless another
+     * query was started in the meantime.
+     */
+    private void readPage(long cursor) {
+        loading = true;
+        int pageGeneration = generation;
+        LongFunction<MessagePage> reader = pageReader;
+        new SwingWorker<MessagePage, Void>() {
+            @Override
+            protected MessagePage doInBackground() {
+                return reader.apply(cursor);
+            }
+
+            @Override
+            protected void done() {
+                if (pageGeneration != generation) {
+                    return;
+                }
+                loading = false;
+                try {
+                    append(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    System.out.println("Error in reading search results: " + e.getMessage());
+                    nextCursor = -1;
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Adds the messages of a page at the end of the list.
+     */
+    private void append(MessagePage page) {
+        nextCursor = page.getNextCursor();
+        List<MmsMessage> pageMessages = page.getMessages();
+        if (pageMessages.isEmpty()) {
+            return;
+        }
+        int first = messages.size();
+        messages.addAll(pageMessages);
+        fireIntervalAdded(this, first, messages.size() - 1);
+    }
+}
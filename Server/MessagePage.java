@@ -0,0 +1,42 @@
+package Server;
+
+import Both.MmsMessage;
+import java.util.ArrayList;
+
+/**
+ * One page of a message query. Large results are read a page at a time instead of all at once;
+ * the cursor of a page is handed back to the query to get the next one.
+ */
+public class MessagePage {
+    private ArrayList<MmsMessage> messages;
+    private long nextCursor;
+
+    /**
+     * Constructs a MessagePage with its messages and the cursor of the following page, or -1 if this is the last page.
+     */
+    public MessagePage(ArrayList<MmsMessage> messages, long nextCursor) {
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Returns the messages on this page.
+     */
+    public ArrayList<MmsMessage> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Returns the cursor to pass to the query for the next page.
+     */
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Checks if there are more pages after this one.
+     */
+    public boolean hasMore() {
+        return nextCursor >= 0;
+    }
+}
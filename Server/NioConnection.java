@@ -0,0 +1,360 @@
+package Server;
+
+import Both.ClientUpdateMessage;
+import Both.Message;
+import Both.OutgoingMessage;
+import Both.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client connection served by an EventLoop in NIO mode.
+ * Bytes are read from the non-blocking channel into a pooled buffer and decoded once a whole
+ * message has arrived. Decoded messages are routed by the routing stage, in the order they arrived,
+ * and reading stops while too many of them wait there. Outgoing messages are encoded by the routing
+ * thread and written by the loop.
+ */
+public class NioConnection implements Connection {
+    private SocketChannel channel;
+    private EventLoop loop;
+    private SelectionKey key;
+    private volatile ClientHandler client;
+    private WireFormat format;
+    private ByteBuffer inbound;
+    private ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private ByteBuffer[] writeBatch = new ByteBuffer[64];
+    private ScheduledFuture<?> handshakeDeadline;
+    private boolean handshaking; // set by the loop while the handshake stage sets up the client
+    private volatile boolean routingBehind; // set by the loop while too many messages wait to be routed
+    private ConcurrentLinkedQueue<Message> unrouted = new ConcurrentLinkedQueue<>();
+    private AtomicInteger unroutedCount = new AtomicInteger();
+    private AtomicBoolean routing = new AtomicBoolean();
+    private int maxUnrouted = ServerConfig.getMaxUnrouted();
+
+    /**
+     * Constructs a NioConnection for an accepted channel.
+     */
+    public NioConnection(SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /**
+     * Sets the selection key of the channel. Called by the event loop once the channel is registered.
+     * From then on the client has the handshake timeout to send its hello and its ClientUpdateMessage,
+     * as a deadline for both rather than a read timeout, so sending a byte now and then does not keep it connected.
+     */
+    public void setKey(SelectionKey key) {
+        this.key = key;
+        handshakeDeadline = ConnectionThreads.schedule(() -> {
+            System.out.println("Handshake timed out, disconnecting client");
+            close();
+        }, ServerConfig.getHandshakeTimeout());
+    }
+
+    /**
+     * Attaches the connection to its client handler. Messages read after this are routed by the server.
+     * Called by the handshake stage, after which the loop goes on reading the client's messages.
+     */
+    @Override
+    public void open(ClientHandler client) {
+        this.client = client;
+        loop.execute(this::resumeReading);
+    }
+
+    /**
+     * Starts reading again once the client is set up, first decoding the bytes that arrived right
+     * after the handshake. Called by the event loop.
+     */
+    private void resumeReading() {
+        handshaking = false;
+        readAgain();
+    }
+
+    /**
+     * Starts reading again once the routing stage has caught up with the client. Called by the event loop.
+     */
+    private void catchUp() {
+        routingBehind = false;
+        readAgain();
+    }
+
+    /**
+     * Watches the channel for readability again and decodes the bytes that are already buffered.
+     */
+    private void readAgain() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        updateInterest();
+        try {
+            if (inbound != null && inbound.position() > 0) {
+                decodeInbound();
+            }
+        } catch (Exception e) {
+            System.out.println("Error in reading message, disconnected?");
+            closeChannel();
+        }
+    }
+
+    /**
+     * Hands the event loop the next messages of the client unless it still has some to write.
+     * Messages stay in the client's bounded queue until the socket has room for them, so a slow
+     * client fills its own queue instead of the loop's buffers.
+     */
+    @Override
+    public void sendWaitingMessages() {
+        if (outbound.isEmpty() && takeWaitingMessages()) {
+            requestWrite();
+        }
+    }
+
+    /**
+     * Encodes up to one write batch of the client's waiting messages and queues them for the event loop.
+     * This method is synchronized so the wire format is only used by one thread at a time.
+     *
+     * @return true if any message was queued
+     */
+    private synchronized boolean takeWaitingMessages() {
+        boolean taken = false;
+        try {
+            if (client != null && client.getConnection() == this && client.getUser().getConnected()) {
+                OutgoingMessage message;
+                for (int i = 0; i < writeBatch.length && (message = client.getMessagesToSend().poll()) != null; i++) {
+                    for (ByteBuffer buffer : format.encode(message)) {
+                        outbound.add(buffer);
+                    }
+                    taken = true;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error in client handler sending waiting messages");
+        }
+        return taken;
+    }
+
+    /**
+     * Reads the available bytes from the channel and routes every complete message.
+     * Called by the event loop when the channel is readable.
+     */
+    public void handleRead() {
+        try {
+            if (inbound == null) {
+                inbound = loop.getBufferPool().acquire();
+            } else if (!inbound.hasRemaining()) {
+                inbound = grow(inbound);
+            }
+
+            if (channel.read(inbound) == -1) {
+                closeChannel();
+                return;
+            }
+            decodeInbound();
+        } catch (Exception e) {
+            System.out.println("Error in reading message, disconnected?");
+            closeChannel();
+        }
+    }
+
+    /**
+     * Decodes the complete messages in the inbound buffer and keeps the bytes of an incomplete one for the next read.
+     */
+    private void decodeInbound() throws IOException, ClassNotFoundException {
+        inbound.flip();
+        decodeMessages();
+        if (inbound.hasRemaining()) {
+            inbound.compact();
+        } else {
+            loop.getBufferPool().release(inbound);
+            inbound = null;
+        }
+    }
+
+    /**
+     * Writes queued buffers until the queue is empty or the socket buffer is full.
+     * Several buffers are handed to the channel in one gathering write, so shared message frames
+     * are written straight from their single encoding without being copied together first.
+     * Called by the event loop when the channel is writable.
+     */
+    public void handleWrite() {
+        try {
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : outbound) {
+                    writeBatch[count++] = buffer;
+                    if (count == writeBatch.length) {
+                        break;
+                    }
+                }
+                channel.write(writeBatch, 0, count);
+
+                for (int i = 0; i < count; i++) {
+                    if (writeBatch[i].hasRemaining()) {
+                        Arrays.fill(writeBatch, null);
+                        return;
+                    }
+                    outbound.poll();
+                }
+                Arrays.fill(writeBatch, null);
+                if (outbound.isEmpty()) {
+                    takeWaitingMessages();
+                }
+            }
+            updateInterest();
+        } catch (IOException e) {
+            System.out.println("Error in writing message, disconnected?");
+            closeChannel();
+        }
+    }
+
+    /**
+     * Decodes as many complete messages as the inbound buffer holds.
+     * The connection starts with the hello that picks the wire format, and the first message must be
+     * the ClientUpdateMessage handshake, which is handed to the handshake stage to create the client handler.
+     * Reading stops until the client is set up, so its later messages are routed in order.
+     */
+    private void decodeMessages() throws IOException, ClassNotFoundException {
+        while (inbound.hasRemaining() && !handshaking && !routingBehind) {
+            if (format == null) {
+                int version = WireFormat.readHello(inbound);
+                if (version < 0) {
+                    return;
+                }
+                version = Math.min(version, ServerConfig.getProtocolVersion());
+                format = WireFormat.forVersion(version, ServerConfig.getResetMessages(), ServerConfig.getResetBytes());
+                outbound.add(ByteBuffer.wrap(WireFormat.hello(version)));
+                requestWrite();
+                continue;
+            }
+
+            Message message = format.decode(inbound);
+            if (message == null) {
+                return;
+            }
+
+            if (client != null) {
+                unrouted.add(message);
+                if (unroutedCount.incrementAndGet() >= maxUnrouted) {
+                    routingBehind = true;
+                    // the routing stage may have caught up before it could see the flag
+                    routingBehind = unroutedCount.get() > maxUnrouted / 2;
+                    updateInterest();
+                }
+                scheduleRouting();
+            } else if (message instanceof ClientUpdateMessage) {
+                if (!handshakeDeadline.cancel(false)) {
+                    throw new IOException("Handshake deadline passed");
+                }
+                handshaking = true;
+                updateInterest();
+                loop.getHandshakes().submit((ClientUpdateMessage) message, this);
+            } else {
+                throw new IOException("Expected handshake");
+            }
+        }
+    }
+
+    /**
+     * Starts a routing task for the decoded messages unless one is already running for this connection.
+     */
+    private void scheduleRouting() {
+        if (routing.compareAndSet(false, true)) {
+            loop.getRouting().execute(this::routeMessages);
+        }
+    }
+
+    /**
+     * Routes the decoded messages in the order they arrived. Runs on the routing stage, and asks the
+     * loop to read again once half of the messages that stopped it are routed.
+     */
+    private void routeMessages() {
+        Message message;
+        while ((message = unrouted.poll()) != null) {
+            try {
+                Server.newMessage(message, client);
+            } catch (RuntimeException e) {
+                System.out.println("Error in routing message: " + e.getMessage());
+            }
+            if (unroutedCount.decrementAndGet() == maxUnrouted / 2 && routingBehind) {
+                loop.execute(this::catchUp);
+            }
+        }
+        routing.set(false);
+        if (!unrouted.isEmpty()) {
+            scheduleRouting();
+        }
+    }
+
+    /**
+     * Asks the event loop to start watching the channel for writability.
+     */
+    private void requestWrite() {
+        loop.execute(this::updateInterest);
+    }
+
+    /**
+     * Watches the channel for readability unless the handshake is being set up or the routing stage
+     * is behind, and for writability
+     * while buffers are queued. Called by the event loop.
+     */
+    private void updateInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps((handshaking || routingBehind ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+    }
+
+    /**
+     * Returns a buffer twice the size of the given full buffer, holding the same bytes.
+     */
+    private ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        loop.getBufferPool().release(buffer);
+        return bigger;
+    }
+
+    /**
+     * Closes the connection on its event loop.
+     */
+    @Override
+    public void close() {
+        loop.execute(this::closeChannel);
+    }
+
+    /**
+     * Closes the channel and gives the read buffer back to the pool. Called by the event loop.
+     */
+    private void closeChannel() {
+        if (handshakeDeadline != null) {
+            handshakeDeadline.cancel(false);
+        }
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error in closing client channel");
+        }
+        if (inbound != null) {
+            loop.getBufferPool().release(inbound);
+            inbound = null;
+        }
+    }
+
+    /**
+     * Returns the wire format agreed in the handshake.
+     */
+    @Override
+    public WireFormat getFormat() {
+        return format;
+    }
+}
@@ -0,0 +1,56 @@
+package Server;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts incoming client connections in NIO mode and spreads them over a small pool of event loops.
+ * This is the NIO counterpart of ClientReceiver and is started instead of it when the server runs in NIO mode.
+ * The loops share one handshake stage, which sets up the clients whose handshake they read, and one
+ * routing stage, which routes the messages they decode.
+ */
+public class NioReceiver extends Thread {
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private int nextLoop;
+    private HandshakeStage handshakes = new HandshakeStage();
+    private RoutingStage routing = new RoutingStage();
+
+    /**
+     * Constructs a NioReceiver, starts its event loops and starts listening on the specified port.
+     */
+    public NioReceiver(int port) {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+
+            loops = new EventLoop[ServerConfig.getEventLoops()];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i, handshakes, routing);
+                loops[i].start();
+            }
+            start();
+        } catch (Exception e) {
+            System.out.println("Error in starting server");
+        }
+    }
+
+    /**
+     * Accepts client channels in a continuous loop and hands them to the event loops round robin.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                SocketChannel newClient = serverChannel.accept();
+                System.out.println("Connected");
+                loops[nextLoop].register(newClient);
+                nextLoop = (nextLoop + 1) % loops.length;
+            } catch (Exception e) {
+                System.out.println("Error in accepting client, not connected");
+                e.printStackTrace();
+            }
+        }
+    }
+}
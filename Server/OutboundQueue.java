@@ -0,0 +1,439 @@
+package Server;
+
+import Both.Message;
+import Both.MmsMessage;
+import Both.OutgoingMessage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The bounded queue of messages waiting to be sent to one client.
+ * Any routing thread may add messages, but only the client's current connection takes them.
+ * The queue is a ring buffer where every slot has a sequence number telling whether it is free or
+ * filled, so adding claims a slot with one compare-and-set. Adding holds the shared side of a
+ * read-write lock, so routing threads add at the same time, while a spill holds the exclusive side to
+ * turn the queue over to the mailbox; no message can reach the ring after one spilled before it. A full queue refuses
+ * messages and the client handler applies its overflow policy: a message can be spilled to the
+ * user's mailbox on disk, which is read back in batches once the ring is empty, or a presence delta
+ * can be held back in a single slot that is sent last and only keeps the newest delta.
+ * The queue also remembers the sequence numbers of the chat messages it handed out since the client's
+ * last ack, in the order they were sent, so the ones lost with a connection can be replayed before anything else.
+ */
+public class OutboundQueue {
+    private static final int MAX_UNACKNOWLEDGED = 64 * 1024;
+
+    private int capacity;
+    private int mask;
+    private AtomicReferenceArray<OutgoingMessage> slots;
+    private AtomicLongArray sequences;
+    private AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private AtomicReference<OutgoingMessage> heldPresence = new AtomicReference<>();
+    private Mailbox mailbox;
+    private int mailboxBatchSize;
+    private ReentrantLock spillLock = new ReentrantLock();
+    private ReentrantReadWriteLock offerLock = new ReentrantReadWriteLock();
+    private volatile boolean spilling;
+    private ArrayDeque<OutgoingMessage> mailboxBatch = new ArrayDeque<>();
+
+    private volatile boolean replaying;
+    private ArrayDeque<OutgoingMessage> replay = new ArrayDeque<>();
+    private HashSet<Long> duplicates = new HashSet<>();
+    private ReentrantLock takenLock = new ReentrantLock();
+    private ArrayDeque<Long> taken = new ArrayDeque<>();
+
+    private AtomicLong dropped = new AtomicLong();
+    private AtomicLong spilled = new AtomicLong();
+    private AtomicLong highWater = new AtomicLong();
+
+    /**
+     * Constructs an OutboundQueue holding at least the given number of messages in memory and
+     * spilling to the given mailbox. Messages already waiting in the mailbox are sent first.
+     */
+    public OutboundQueue(int capacity, Mailbox mailbox, int mailboxBatchSize) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.mailbox = mailbox;
+        this.mailboxBatchSize = mailboxBatchSize;
+        this.spilling = mailbox.getWaiting() > 0;
+        slots = new AtomicReferenceArray<>(this.capacity);
+        sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds a message to the ring, or to the mailbox while earlier messages are still there,
+     * so the client gets its messages in order.
+     *
+     * @return false if the ring is full and the message was not added
+     */
+    public boolean offer(OutgoingMessage message) {
+        offerLock.readLock().lock();
+        try {
+            if (spilling) {
+                spillLock.lock();
+                try {
+                    if (spilling) {
+                        appendToSpill(message);
+                        return true;
+                    }
+                } finally {
+                    spillLock.unlock();
+                }
+            }
+
+            while (true) {
+                long position = tail.get();
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference < 0) {
+                    return false;
+                }
+                if (difference == 0 && tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, message);
+                    sequences.set(index, position + 1);
+                    highWater.accumulateAndGet(position + 1 - head, Math::max);
+                    return true;
+                }
+            }
+        } finally {
+            offerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a message to the mailbox, because it did not fit or because the client is offline.
+     * Every later message goes there too until the mailbox has been read back.
+     */
+    public void spill(OutgoingMessage message) {
+        offerLock.writeLock().lock();
+        spillLock.lock();
+        try {
+            spilling = true;
+            appendToSpill(message);
+        } finally {
+            spillLock.unlock();
+            offerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Holds back a presence delta that did not fit, dropping the delta held back before it.
+     */
+    public void holdPresence(OutgoingMessage message) {
+        if (heldPresence.getAndSet(message) != null) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a message that was dropped by the overflow policy.
+     */
+    public void drop() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Returns the next message without taking it, or null if there is none.
+     */
+    public OutgoingMessage peek() {
+        OutgoingMessage message = replaying ? peekReplay(false) : null;
+        if (message != null) {
+            return message;
+        }
+        while (true) {
+            message = peekQueued();
+            if (message == null || !isDuplicate(message)) {
+                return message;
+            }
+            takeQueued();
+        }
+    }
+
+    /**
+     * Takes the next message, or returns null if there is none.
+     */
+    public OutgoingMessage poll() {
+        OutgoingMessage message = replaying ? peekReplay(true) : null;
+        if (message == null) {
+            do {
+                message = takeQueued();
+            } while (message != null && isDuplicate(message));
+        }
+
+        if (message != null && message.getMessage() instanceof MmsMessage mms && mms.getSequence() >= 0) {
+            takenLock.lock();
+            try {
+                taken.add(mms.getSequence());
+                if (taken.size() > MAX_UNACKNOWLEDGED) {
+                    taken.poll();
+                }
+            } finally {
+                takenLock.unlock();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Puts messages in front of everything else in the queue, to send again what a client missed.
+     *
+     * @param queuedDuplicates true if some of the messages may also still be waiting in the queue,
+     *        which are then skipped
+     */
+    public void replay(List<OutgoingMessage> messages, boolean queuedDuplicates) {
+        spillLock.lock();
+        try {
+            for (OutgoingMessage message : messages) {
+                replay.add(message);
+                if (queuedDuplicates) {
+                    duplicates.add(((MmsMessage) message.getMessage()).getSequence());
+                }
+            }
+            replaying = !replay.isEmpty() || !duplicates.isEmpty();
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the chat messages handed out up to and including the one the client acknowledged.
+     */
+    public void acknowledge(long sequence) {
+        takenLock.lock();
+        try {
+            forgetUpTo(sequence);
+        } finally {
+            takenLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the sequence numbers of the chat messages handed out after the given one, which a
+     * reconnecting client never got, and forgets all of them. If the given message is not remembered
+     * every remembered message was sent after it, as the earlier ones were acknowledged.
+     */
+    public List<Long> takeUnacknowledged(long lastReceived) {
+        takenLock.lock();
+        try {
+            forgetUpTo(lastReceived);
+            ArrayList<Long> missed = new ArrayList<>(taken);
+            taken.clear();
+            return missed;
+        } finally {
+            takenLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the remembered chat messages from the oldest up to the given sequence number, which
+     * the client has received. Messages are handed out in about the order they were logged, so only
+     * the ends of the remembered messages are looked at. Called with the taken lock held.
+     */
+    private void forgetUpTo(long sequence) {
+        Long last = taken.peekLast();
+        if (last != null && last <= sequence) {
+            taken.clear();
+            return;
+        }
+        Long first;
+        while ((first = taken.peekFirst()) != null && first <= sequence) {
+            taken.pollFirst();
+        }
+    }
+
+    /**
+     * Returns the next replayed message, or null if there is none.
+     */
+    private OutgoingMessage peekReplay(boolean take) {
+        spillLock.lock();
+        try {
+            OutgoingMessage message = take ? replay.poll() : replay.peek();
+            replaying = !replay.isEmpty() || !duplicates.isEmpty();
+            return message;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Checks if a queued chat message was already replayed, and forgets it if so.
+     */
+    private boolean isDuplicate(OutgoingMessage message) {
+        if (!replaying || !(message.getMessage() instanceof MmsMessage mms)) {
+            return false;
+        }
+        spillLock.lock();
+        try {
+            boolean duplicate = duplicates.remove(mms.getSequence());
+            replaying = !replay.isEmpty() || !duplicates.isEmpty();
+            return duplicate;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next message of the ring, mailbox or held presence without taking it.
+     * Messages in the ring were offered before those in the mailbox, so the ring is looked at again
+     * after the mailbox: a message added to the ring meanwhile goes first, and while its slot is
+     * claimed but not yet filled nothing is returned.
+     */
+    private OutgoingMessage peekQueued() {
+        OutgoingMessage message = peekRing();
+        if (message == null && (spilling || mailbox.getWaiting() > 0)) {
+            message = peekMailbox();
+        }
+        if (message == null) {
+            message = heldPresence.get();
+        }
+        return tail.get() != head ? peekRing() : message;
+    }
+
+    /**
+     * Takes the next message of the ring, mailbox or held presence, in the order of peekQueued.
+     * A message taken from the mailbox is confirmed to it as delivered.
+     */
+    private OutgoingMessage takeQueued() {
+        boolean fromMailbox = peekRing() == null && (spilling || mailbox.getWaiting() > 0) && peekMailbox() != null;
+        OutgoingMessage message = peekRing();
+        if (message != null) {
+            long position = head;
+            int index = (int) position & mask;
+            slots.set(index, null);
+            sequences.set(index, position + capacity);
+            head = position + 1;
+            return message;
+        }
+        if (tail.get() != head) {
+            return null;
+        }
+
+        if (fromMailbox) {
+            spillLock.lock();
+            try {
+                message = mailboxBatch.poll();
+                mailbox.delivered();
+                return message;
+            } finally {
+                spillLock.unlock();
+            }
+        }
+        return heldPresence.getAndSet(null);
+    }
+
+    /**
+     * Returns true if no message is waiting. The mailbox is not read, so this is cheap enough to call
+     * with a lock held; a queued message that turns out to be a duplicate of a replayed one, or a slot
+     * that is claimed but not yet filled, still counts as waiting and peek may then return null.
+     */
+    public boolean isEmpty() {
+        if (tail.get() != head || mailbox.getWaiting() > 0 || heldPresence.get() != null) {
+            return false;
+        }
+        spillLock.lock();
+        try {
+            return replay.isEmpty() && mailboxBatch.isEmpty();
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many messages are waiting, in memory and in the mailbox.
+     */
+    public long getDepth() {
+        long depth = Math.max(0, tail.get() - head) + mailbox.getWaiting();
+        spillLock.lock();
+        try {
+            depth += mailboxBatch.size();
+        } finally {
+            spillLock.unlock();
+        }
+        return heldPresence.get() != null ? depth + 1 : depth;
+    }
+
+    /**
+     * Returns the most messages that were ever waiting in the ring at once.
+     */
+    public long getHighWater() {
+        return highWater.get();
+    }
+
+    /**
+     * Returns how many messages the overflow policy dropped.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns how many messages were spilled to the mailbox.
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * Returns the message at the head of the ring, or null if the ring is empty.
+     */
+    private OutgoingMessage peekRing() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        return slots.get(index);
+    }
+
+    /**
+     * Returns the next message from the mailbox, reading the next batch once the last one is taken.
+     * Once the mailbox has been read back new messages go to the ring again.
+     */
+    private OutgoingMessage peekMailbox() {
+        spillLock.lock();
+        try {
+            if (mailboxBatch.isEmpty()) {
+                for (Message message : mailbox.readBatch(mailboxBatchSize)) {
+                    mailboxBatch.add(new OutgoingMessage(message));
+                }
+                if (mailboxBatch.isEmpty()) {
+                    spilling = false;
+                }
+            }
+            return mailboxBatch.peek();
+        } catch (IOException e) {
+            System.err.println("Error in reading mailbox: " + e.getMessage());
+            mailbox.discard();
+            spilling = false;
+            return null;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a message to the mailbox. Called with the spill lock held.
+     */
+    private void appendToSpill(OutgoingMessage message) {
+        try {
+            mailbox.append(message);
+            spilled.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Error in spilling message: " + e.getMessage());
+            dropped.incrementAndGet();
+        }
+    }
+}
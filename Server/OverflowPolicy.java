@@ -0,0 +1,24 @@
+package Server;
+
+/**
+ * What happens to a message for a client whose outbound queue is full, chosen with the "chat.overflow" system property.
+ * Messages for a client that is not connected always go to its mailbox on disk, whatever the policy.
+ */
+public enum OverflowPolicy {
+    /**
+     * Presence deltas that do not fit are dropped except for the newest, which is sent once the queue drains.
+     * The client notices the missing versions and asks for a snapshot. A chat message that does not fit
+     * disconnects the client, like DISCONNECT.
+     */
+    DROP_PRESENCE,
+
+    /**
+     * A message that does not fit is dropped and the client is disconnected, so it can reconnect and catch up.
+     */
+    DISCONNECT,
+
+    /**
+     * Messages that do not fit are appended to the client's mailbox and sent in order once the queue drains. Nothing is dropped.
+     */
+    SPILL
+}
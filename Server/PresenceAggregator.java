@@ -0,0 +1,105 @@
+package Server;
+
+import Both.PresenceDeltaMessage;
+import Both.User;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects joins and leaves for a short window and turns them into one presence delta per window,
+ * so a network blip that drops and reconnects hundreds of clients costs each client one update
+ * instead of hundreds. Changes are kept against what clients were last told: a user who leaves
+ * and comes back within the window, or the other way around, is not mentioned at all.
+ * The aggregator is not thread safe. The server only uses it under its presence lock, which the
+ * flush it schedules takes as well.
+ */
+public class PresenceAggregator {
+    private long windowMillis;
+    private Runnable flush;
+    private ScheduledExecutorService timer;
+    private boolean flushScheduled;
+    private long version;
+    private LinkedHashMap<String, User> announced = new LinkedHashMap<>();
+    private LinkedHashMap<String, User> changes = new LinkedHashMap<>();
+
+    /**
+     * Constructs a PresenceAggregator that runs flush once a window with changes is over.
+     * With a window of 0 the flush is left to the caller, right after each change.
+     */
+    public PresenceAggregator(long windowMillis, Runnable flush) {
+        this.windowMillis = windowMillis;
+        this.flush = flush;
+    }
+
+    /**
+     * Records that a user joined or left, as told by the user's connected status.
+     *
+     * @return true if the change must be flushed right away because there is no window
+     */
+    public boolean record(User user) {
+        User known = announced.get(user.getUserName());
+        if (user.getConnected() == (known != null)) {
+            changes.remove(user.getUserName()); // back to what clients already know
+        } else {
+            changes.put(user.getUserName(), user);
+        }
+
+        if (windowMillis <= 0) {
+            return true;
+        }
+        if (!flushScheduled && !changes.isEmpty()) {
+            flushScheduled = true;
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "presence-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            timer.schedule(flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * Ends the window and returns its changes as the next delta.
+     *
+     * @return the delta, or null if nothing changed in the window
+     */
+    public PresenceDeltaMessage drain() {
+        flushScheduled = false;
+        if (changes.isEmpty()) {
+            return null;
+        }
+
+        ArrayList<User> changed = new ArrayList<>(changes.values());
+        for (User user : changed) {
+            if (user.getConnected()) {
+                announced.put(user.getUserName(), user);
+            } else {
+                announced.remove(user.getUserName());
+            }
+        }
+        changes.clear();
+        return new PresenceDeltaMessage(++version, changed);
+    }
+
+    /**
+     * Returns the online users as clients were last told, which is what a snapshot at the current
+     * version must hold. Changes of the current window follow in the next delta.
+     */
+    public HashMap<String, User> getAnnouncedUsers() {
+        return new HashMap<>(announced);
+    }
+
+    /**
+     * Returns the version of the last delta.
+     */
+    public long getVersion() {
+        return version;
+    }
+}
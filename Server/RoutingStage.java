@@ -0,0 +1,35 @@
+package Server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes the messages the event loops decode in NIO mode. Routing a message may store a blob, read
+ * history back from the message store or append to a mailbox, none of which may stall a loop, so the
+ * loops only frame and decode messages and hand them over here.
+ * Each connection drains its own queue of decoded messages with one task at a time, so its messages
+ * are routed in order, while different connections are routed in parallel on a small pool.
+ */
+public class RoutingStage {
+    private ExecutorService executor;
+
+    /**
+     * Constructs a RoutingStage with "chat.routingThreads" daemon threads.
+     */
+    public RoutingStage() {
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(ServerConfig.getRoutingThreads(), task -> {
+            Thread thread = new Thread(task, "router-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the routing task on one of the stage's threads.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+}
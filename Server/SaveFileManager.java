@@ -1,77 +1,607 @@
 package Server;
 
+import Both.BinaryWireFormat;
 import Both.MmsMessage;
-import java.io.*;
+import Both.OutgoingMessage;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Manages the saving and loading of MmsMessage objects to and from a file.
- * This class handles reading messages from a file upon initialization and saving messages
- * to the file whenever a new message is added.
+ * Manages the saving and loading of MmsMessage objects in a directory of segment files.
+ * New messages are appended to the newest segment, which is rolled over to a new one when it grows
+ * past "chat.segmentBytes" or gets older than "chat.segmentMaxAgeHours". Sealed segments are listed
+ * in a small manifest, so startup only reads segment headers and scans the newest segment, and
+ * retention deletes whole old segments. When appended records are forced to disk is decided by the FsyncPolicy.
+ * Every appended message is also added to a SearchIndex kept in the same directory.
  */
 public class SaveFileManager {
-    private String filePath;
-    private ArrayList<MmsMessage> mmsMessages;
+    private static final String MANIFEST = "manifest.txt";
+    private static final String SEARCH_INDEX = "search.idx";
+    private static final int OLD_LOG_HEADER_LENGTH = 8;
+
+    private Path directory;
+    private ArrayList<Segment> segments = new ArrayList<>();
+    private FsyncPolicy fsyncPolicy;
+    private volatile boolean unsynced;
+    private SearchIndex searchIndex;
+    private long lastImportedMillis;
 
     /**
-     * Constructs a SaveFileManager object with the specified file path.
-     * It initializes the list of messages and loads existing messages from the file.
+     * Constructs a SaveFileManager object storing its segments in the specified directory.
+     * It opens the existing segments, applies retention, brings the search index up to date with them
+     * and starts the periodic sync if the GROUP policy is used.
      */
-    public SaveFileManager(String filePath) {
-        this.filePath = filePath;
-        this.mmsMessages = new ArrayList<>();
-        loadMessagesFromFile();
+    public SaveFileManager(String directoryPath) {
+        this.directory = Paths.get(directoryPath);
+        this.fsyncPolicy = ServerConfig.getFsyncPolicy();
+        try {
+            Files.createDirectories(directory);
+            loadSegments();
+            applyRetention();
+        } catch (IOException e) {
+            System.err.println("Error in opening message store: " + e.getMessage());
+        }
+        openSearchIndex();
+
+        if (fsyncPolicy == FsyncPolicy.GROUP) {
+            ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "log-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = ServerConfig.getFsyncInterval();
+            syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
-     * Loads messages from the file into the mmsMessages list.
-     * If the file exists, it reads objects from the file and adds them to the list,
-     * handling end-of-file and other potential exceptions gracefully.
+     * Opens the segment files. Segments in the manifest are trusted, any other segment is scanned and
+     * repaired, which is normally only the newest one that was being appended to.
      */
-    private void loadMessagesFromFile() {
-        File file = new File(filePath);
-        if (file.exists()) {
-            try (ObjectInputStream reader = new ObjectInputStream(new FileInputStream(file))) {
-                Object obj;
-                while ((obj = reader.readObject()) != null) {
-                    if (obj instanceof MmsMessage) {
-                        mmsMessages.add((MmsMessage) obj);
+    private void loadSegments() throws IOException {
+        HashMap<String, String[]> manifest = readManifest();
+        ArrayList<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        boolean unlisted = false;
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            String[] entry = manifest.get(file.getFileName().toString());
+            if (entry != null) {
+                segments.add(Segment.openSealed(file, Integer.parseInt(entry[2]), Long.parseLong(entry[3])));
+            } else {
+                segments.add(Segment.recover(file));
+                unlisted |= i < files.size() - 1;
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(segmentPath(0), 0));
+        }
+        if (unlisted) {
+            writeManifest();
+        }
+    }
+
+    /**
+     * Loads the search index and indexes the messages stored after its snapshot was saved.
+     * An index that is ahead of the store, because the segments were replaced or lost, is rebuilt.
+     */
+    private void openSearchIndex() {
+        searchIndex = new SearchIndex(directory.resolve(SEARCH_INDEX));
+        long next = getNextSequence();
+        if (searchIndex.getNextSequence() > next) {
+            searchIndex.clear();
+        }
+        searchIndex.removeBefore(getFirstSequence());
+
+        long sequence = Math.max(searchIndex.getNextSequence(), getFirstSequence());
+        if (sequence < next) {
+            System.out.println("Indexing " + (next - sequence) + " messages for search");
+        }
+        for (; sequence < next; sequence++) {
+            try {
+                searchIndex.add(sequence, readMessage(sequence));
+            } catch (IOException e) {
+                System.err.println("Error in indexing message " + sequence + ": " + e.getMessage());
+            }
+        }
+        searchIndex.save();
+    }
+
+    /**
+     * Imports the messages left by older servers into an empty store, once. Those are the SaveFile.txt
+     * of servers from before the message log, where messages were saved with Java serialization, and
+     * then the SaveFile.log of servers from before the segments, which holds one record per message:
+     * its length, a CRC32C checksum and its binary frame. Images are moved to the blob store and users
+     * are registered, so the messages are stored like new ones, and each file is renamed to end in
+     * ".imported" once all of its messages are on disk. If the import fails, what was imported is
+     * thrown away again and the files are left for the next start.
+     */
+    public void importOldMessages(String saveFilePath, String logFilePath) {
+        Path saveFile = Paths.get(saveFilePath);
+        Path logFile = Paths.get(logFilePath);
+        if (!Files.exists(saveFile) && !Files.exists(logFile)) {
+            return;
+        }
+        if (getNextSequence() > 0) {
+            System.out.println("Not importing old messages because the message store already holds messages");
+            return;
+        }
+
+        ArrayList<Path> imported = new ArrayList<>();
+        try {
+            if (Files.exists(saveFile)) {
+                importSaveFile(saveFile);
+                imported.add(saveFile);
+            }
+            if (Files.exists(logFile)) {
+                importMessageLog(logFile);
+                imported.add(logFile);
+            }
+            activeSegment().force();
+        } catch (Exception e) {
+            System.err.println("Error in importing old messages after " + getNextSequence() + " messages: " + e.getMessage());
+            discardAll();
+            return;
+        }
+
+        searchIndex.save();
+        for (Path file : imported) {
+            try {
+                Files.move(file, file.resolveSibling(file.getFileName() + ".imported"));
+            } catch (IOException e) {
+                System.err.println("Error in renaming " + file + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Imported " + getNextSequence() + " messages from " + imported);
+    }
+
+    /**
+     * Imports the serialized messages of a SaveFile.txt.
+     */
+    private void importSaveFile(Path file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream reader = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                Object object;
+                try {
+                    object = reader.readObject();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (object instanceof MmsMessage message) {
+                    appendImported(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Imports the records of a SaveFile.log, up to the first one that is incomplete or fails its checksum.
+     */
+    private void importMessageLog(Path file) throws IOException {
+        BinaryWireFormat format = new BinaryWireFormat(Server.getUserRegistry()::get);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(OLD_LOG_HEADER_LENGTH);
+            long position = 0;
+            long size = channel.size();
+
+            while (position + OLD_LOG_HEADER_LENGTH <= size) {
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || length > BinaryWireFormat.MAX_FRAME_LENGTH || position + OLD_LOG_HEADER_LENGTH + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                channel.read(payload, position + OLD_LOG_HEADER_LENGTH);
+                payload.flip();
+                if (Segment.checksum(payload) != checksum) {
+                    break;
+                }
+
+                try {
+                    if (format.decode(payload) instanceof MmsMessage message) {
+                        appendImported(message);
                     }
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable record at byte " + position + " of " + file + ": " + e.getMessage());
+                }
+                position += OLD_LOG_HEADER_LENGTH + length;
+            }
+            if (position < size) {
+                System.out.println("Ignoring torn tail of " + file + " at byte " + position);
+            }
+        }
+    }
+
+    /**
+     * Appends an imported message like a new one, with the profiles of its users and its image in the blob store.
+     * The old files only kept the server time to the minute, which is not allowed to go backwards here
+     * so the time index stays sorted.
+     */
+    private void appendImported(MmsMessage message) throws IOException {
+        UserRegistry registry = Server.getUserRegistry();
+        message.setSender(registry.register(message.getSender()));
+        message.getReceivers().replaceAll((userName, receiver) -> registry.register(receiver));
+        Server.moveImageToBlobStore(message);
+
+        lastImportedMillis = Math.max(lastImportedMillis, Server.toEpochMillis(message.getServerTime()));
+        message.setServerTimeMillis(lastImportedMillis);
+        message.setSequence(getNextSequence());
+        if (appendMessage(new OutgoingMessage(message)) < 0) {
+            throw new IOException("message " + message.getSequence() + " could not be saved");
+        }
+    }
+
+    /**
+     * Deletes every segment and starts over with an empty store and search index.
+     */
+    private synchronized void discardAll() {
+        try {
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+            segments.clear();
+            segments.add(Segment.create(segmentPath(0), 0));
+            writeManifest();
+        } catch (IOException e) {
+            System.err.println("Error in clearing message store: " + e.getMessage());
+        }
+        searchIndex.clear();
+        searchIndex.save();
+    }
+
+    /**
+     * Appends the record of a message, reusing the frame that is sent to the receivers, and adds it to the search index.
+     *
+     * @return the sequence number of the message, or -1 if it could not be saved
+     */
+    public synchronized long appendMessage(OutgoingMessage message) {
+        try {
+            Segment active = segments.get(segments.size() - 1);
+            if (shouldRoll(active)) {
+                active = roll(active);
+            }
+
+            MmsMessage mms = (MmsMessage) message.getMessage();
+            long sequence = active.append(message.getFrame(), mms.getServerTimeMillis());
+            unsynced = true;
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                try {
+                    active.force();
+                    unsynced = false;
+                } catch (IOException e) {
+                    // the record is appended, so it must not be appended again; the next force syncs it too
+                    System.err.println("Error in syncing message log: " + e.getMessage());
                 }
-            } catch (EOFException e) {
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("Error in reading file: " + e.getMessage());
             }
+            searchIndex.add(sequence, mms);
+            return sequence;
+        } catch (IOException e) {
+            System.err.println("Error in saving message: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the message with the given sequence number from its segment.
+     */
+    public MmsMessage readMessage(long sequence) throws IOException {
+        return findSegment(sequence).read(sequence);
+    }
+
+    /**
+     * Reads one page of the messages stamped in a time range.
+     * The first page starts at the first message at or after fromMillis, found by binary searching the
+     * segments and then the time index of one segment. Reading stops at the first message after toMillis.
+     *
+     * @param fromMillis the start of the range in epoch milliseconds, inclusive
+     * @param toMillis the end of the range in epoch milliseconds, exclusive
+     * @param cursor the cursor of the previous page, or -1 for the first page
+     * @param pageSize the maximum number of messages on the page
+     */
+    public MessagePage readPage(long fromMillis, long toMillis, long cursor, int pageSize) throws IOException {
+        long sequence = cursor < 0 ? findSequence(fromMillis) : Math.max(cursor, getFirstSequence());
+        long end = getNextSequence();
+        ArrayList<MmsMessage> messages = new ArrayList<>();
+
+        while (sequence < end && messages.size() < pageSize) {
+            Segment segment = findSegment(sequence);
+            if (segment.getTime(sequence) >= toMillis) {
+                return new MessagePage(messages, -1);
+            }
+            messages.add(segment.read(sequence));
+            sequence++;
         }
+        return new MessagePage(messages, sequence < end ? sequence : -1);
     }
 
     /**
-     * Saves all current MMS messages to the file.
-     * This method overwrites the file with the updated list of messages.
+     * Reads one page of the messages stamped in a time range that hold every term of a query.
+     * The matches come from the search index, starting at the first message at or after fromMillis,
+     * and only the matching messages are read from their segments. A query without terms reads every message in the range.
+     *
+     * @param query the words to search for, with "from:name" and "to:name" for the sender and receivers
+     * @param fromMillis the start of the range in epoch milliseconds, inclusive
+     * @param toMillis the end of the range in epoch milliseconds, exclusive
+     * @param cursor the cursor of the previous page, or -1 for the first page
+     * @param pageSize the maximum number of messages on the page
      */
-    public void saveFile() {
-        try (ObjectOutputStream writer = new ObjectOutputStream(new FileOutputStream(filePath))) {
-            for (MmsMessage message : mmsMessages) {
-                writer.writeObject(message);
+    public MessagePage search(String query, long fromMillis, long toMillis, long cursor, int pageSize) throws IOException {
+        List<String> terms = SearchIndex.parseQuery(query);
+        if (terms.isEmpty()) {
+            return readPage(fromMillis, toMillis, cursor, pageSize);
+        }
+
+        long sequence = cursor < 0 ? findSequence(fromMillis) : Math.max(cursor, getFirstSequence());
+        ArrayList<MmsMessage> messages = new ArrayList<>();
+        for (long match : searchIndex.find(terms, sequence, pageSize + 1)) {
+            Segment segment = findSegment(match);
+            if (segment.getTime(match) >= toMillis) {
+                return new MessagePage(messages, -1);
+            }
+            if (messages.size() == pageSize) {
+                return new MessagePage(messages, match);
             }
+            messages.add(segment.read(match));
+        }
+        return new MessagePage(messages, -1);
+    }
+
+    /**
+     * Reads the newest messages before a cursor that hold any of the given terms, such as the
+     * messages of one conversation. Only the matching messages are read from their segments.
+     *
+     * @param terms the terms of the conversation or user, see SearchIndex
+     * @param before the sequence number the messages must come before, or -1 for the newest messages
+     * @param count the maximum number of messages
+     * @return the messages oldest first, with the sequence number of the oldest one as the cursor
+     *         for the page before it, or -1 if there are no older messages
+     */
+    public MessagePage readHistory(List<String> terms, long before, int count) throws IOException {
+        long[] matches = searchIndex.findNewest(terms, before < 0 ? Long.MAX_VALUE : before, count + 1);
+        long first = getFirstSequence();
+        int start = matches.length > count ? 1 : 0;
+        while (start < matches.length && matches[start] < first) {
+            start++;
+        }
+
+        ArrayList<MmsMessage> messages = new ArrayList<>();
+        for (int i = start; i < matches.length; i++) {
+            messages.add(readMessage(matches[i]));
+        }
+        boolean older = start > 0 && matches[start - 1] >= first;
+        return new MessagePage(messages, older ? matches[start] : -1);
+    }
+
+    /**
+     * Finds the first stored message stamped at or after the given time.
+     *
+     * @return its sequence number, or the next sequence number if there is none
+     */
+    public long findSequence(long millis) throws IOException {
+        Segment segment;
+        synchronized (this) {
+            int low = 0;
+            int high = segments.size() - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (segments.get(middle).getLastMillis() < millis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            segment = segments.get(low);
+        }
+        return segment.findFirstAtOrAfter(millis);
+    }
+
+    /**
+     * Forces appended records to disk if there are any that are not yet.
+     */
+    public void sync() {
+        if (!unsynced) {
+            return;
+        }
+        unsynced = false;
+        try {
+            activeSegment().force();
         } catch (IOException e) {
-            System.err.println("Error in saving file: " + e.getMessage());
+            System.err.println("Error in syncing message store: " + e.getMessage());
         }
     }
 
     /**
-     * Adds a new MMS message to the list and immediately saves the updated list to the file.
+     * Returns the sequence number of the oldest message that is still stored.
+     */
+    public synchronized long getFirstSequence() {
+        return segments.get(0).getBaseSequence();
+    }
+
+    /**
+     * Returns the sequence number the next message will get.
+     */
+    public synchronized long getNextSequence() {
+        Segment active = segments.get(segments.size() - 1);
+        return active.getBaseSequence() + active.getCount();
+    }
+
+    /**
+     * Returns a read-only view of the stored messages. Messages are read from disk when they are accessed.
+     */
+    public List<MmsMessage> getMmsMessages() {
+        return new AbstractList<MmsMessage>() {
+            @Override
+            public MmsMessage get(int index) {
+                long sequence = getFirstSequence() + index;
+                if (index < 0 || sequence >= getNextSequence()) {
+                    throw new IndexOutOfBoundsException("No message " + index);
+                }
+                try {
+                    return readMessage(sequence);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
 
-    public void addNewMmsMessage(MmsMessage message) {
-        mmsMessages.add(message);
-        saveFile();
+            @Override
+            public int size() {
+                return (int) (getNextSequence() - getFirstSequence());
+            }
+        };
+    }
+
+    /**
+     * Returns the segment holding the given sequence number.
+     */
+    private synchronized Segment findSegment(long sequence) throws IOException {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) / 2;
+            if (segments.get(middle).getBaseSequence() <= sequence) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        Segment segment = segments.get(low);
+        if (sequence < segment.getBaseSequence() || sequence >= segment.getBaseSequence() + segment.getCount()) {
+            throw new IOException("Message " + sequence + " is not stored");
+        }
+        return segment;
+    }
+
+    private synchronized Segment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Checks if the active segment is full or old enough to start a new one.
+     */
+    private boolean shouldRoll(Segment active) {
+        if (active.getCount() == 0) {
+            return false;
+        }
+        return active.getSize() >= ServerConfig.getSegmentBytes()
+                || System.currentTimeMillis() - active.getCreatedMillis() >= ServerConfig.getSegmentMaxAge();
+    }
+
+    /**
+     * Seals the active segment, lists it in the manifest and starts a new one after it.
+     */
+    private Segment roll(Segment active) throws IOException {
+        active.force();
+        Segment next = Segment.create(segmentPath(active.getBaseSequence() + active.getCount()), active.getBaseSequence() + active.getCount());
+        segments.add(next);
+        writeManifest();
+        applyRetention();
+        return next;
+    }
+
+    /**
+     * Deletes the oldest sealed segments while they are older than "chat.retentionDays" or
+     * the store is larger than "chat.retentionBytes". The active segment is never deleted.
+     */
+    private synchronized void applyRetention() throws IOException {
+        long maxAge = ServerConfig.getRetentionAge();
+        long maxBytes = ServerConfig.getRetentionBytes();
+        long totalBytes = 0;
+        for (Segment segment : segments) {
+            totalBytes += segment.getSize();
+        }
+
+        boolean deleted = false;
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            boolean tooOld = maxAge > 0 && oldest.getLastMillis() < System.currentTimeMillis() - maxAge;
+            boolean tooBig = maxBytes > 0 && totalBytes > maxBytes;
+            if (!tooOld && !tooBig) {
+                break;
+            }
+            segments.remove(0);
+            totalBytes -= oldest.getSize();
+            oldest.delete();
+            deleted = true;
+            System.out.println("Deleted old message segment " + oldest.getPath().getFileName());
+        }
+        if (deleted) {
+            writeManifest();
+            if (searchIndex != null) {
+                searchIndex.removeBefore(getFirstSequence());
+            }
+        }
+    }
+
+    /**
+     * Reads the manifest of sealed segments. Each line holds a file name, its first sequence number,
+     * its message count and when its last message was appended.
+     */
+    private HashMap<String, String[]> readManifest() throws IOException {
+        HashMap<String, String[]> manifest = new HashMap<>();
+        Path file = directory.resolve(MANIFEST);
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] entry = line.trim().split(" ");
+                if (entry.length == 4) {
+                    manifest.put(entry[0], entry);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Rewrites the manifest with every segment but the active one. The new manifest replaces the old one atomically.
+     */
+    private synchronized void writeManifest() throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Segment segment = segments.get(i);
+            manifest.append(segment.getPath().getFileName()).append(' ')
+                    .append(segment.getBaseSequence()).append(' ')
+                    .append(segment.getCount()).append(' ')
+                    .append(segment.getLastMillis()).append('\n');
+        }
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        Files.write(temp, manifest.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     /**
-     * Returns a copy of the list of MMS messages.
-     * This prevents external modification of the internal list.
+     * Returns the path of the segment starting at the given sequence number. The number is zero padded
+     * so that segment files sort in sequence order.
      */
-    public ArrayList<MmsMessage> getMmsMessages() {
-        return new ArrayList<>(mmsMessages);
+    private Path segmentPath(long baseSequence) {
+        return directory.resolve(String.format("segment-%020d.log", baseSequence));
     }
 }
@@ -0,0 +1,508 @@
+package Server;
+
+import Both.Blobs;
+import Both.MmsMessage;
+import Both.User;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An inverted index of the stored messages, mapping every term to the sorted sequence numbers of
+ * the messages holding it. The terms of a message are the lowercased words of its text and the
+ * names of its sender and receivers, which can also be searched for as "from:name" and "to:name".
+ * Every message is also indexed under its conversation, the sender and receivers together, so the
+ * history of one conversation is a single posting list that is read backwards from a cursor.
+ * Messages are added as they are appended to the store, in sequence order, so every posting list
+ * stays sorted by only ever appending to it. The index is saved to a snapshot file next to the
+ * segments every "chat.indexSaveIntervalMs"; on startup the snapshot is loaded and the messages
+ * stored after it was saved are indexed again from the segments. The snapshot is written from a view
+ * of the posting lists taken under the lock, so adding messages never waits for the disk.
+ */
+public class SearchIndex {
+    private static final int MAGIC = 0x53494458;
+    private static final int VERSION = 3;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAX_CONVERSATION_TERM_LENGTH = 256;
+
+    private Path path;
+    private HashMap<String, Postings> terms = new HashMap<>();
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long nextSequence;
+    private volatile boolean dirty;
+
+    /**
+     * Constructs a SearchIndex saved to the specified file, loading the snapshot a previous run saved
+     * there, and starts saving it periodically.
+     */
+    public SearchIndex(Path path) {
+        this.path = path;
+        try {
+            load();
+        } catch (IOException e) {
+            System.err.println("Error in loading search index, rebuilding it: " + e.getMessage());
+            terms.clear();
+            nextSequence = 0;
+        }
+
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "index-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = ServerConfig.getIndexSaveInterval();
+        saver.scheduleWithFixedDelay(this::save, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the terms of a stored message. Messages must be added in sequence order, and a message
+     * that is already indexed is ignored.
+     */
+    public void add(long sequence, MmsMessage message) {
+        lock.writeLock().lock();
+        try {
+            if (sequence < nextSequence) {
+                return;
+            }
+            for (String term : termsOf(message)) {
+                terms.computeIfAbsent(term, key -> new Postings()).add(sequence);
+            }
+            nextSequence = sequence + 1;
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the messages holding every one of the given terms, starting at the given sequence number.
+     * The rarest term's postings are walked and every other term's postings are searched from where
+     * the previous match was found, so the cost follows the rarest term rather than the most common one.
+     *
+     * @return the sequence numbers of up to limit matching messages, in order
+     */
+    public long[] find(List<String> queryTerms, long fromSequence, int limit) {
+        lock.readLock().lock();
+        try {
+            Postings[] lists = new Postings[queryTerms.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = terms.get(queryTerms.get(i));
+                if (lists[i] == null) {
+                    return new long[0];
+                }
+            }
+            Arrays.sort(lists, Comparator.comparingInt(postings -> postings.size));
+
+            long[] matches = new long[Math.min(limit, lists[0].size)];
+            int found = 0;
+            int[] positions = new int[lists.length];
+            for (int i = lists[0].seek(fromSequence, 0); i < lists[0].size && found < matches.length; i++) {
+                long sequence = lists[0].sequences[i];
+                boolean everyTerm = true;
+                for (int j = 1; j < lists.length && everyTerm; j++) {
+                    positions[j] = lists[j].seek(sequence, positions[j]);
+                    everyTerm = positions[j] < lists[j].size && lists[j].sequences[positions[j]] == sequence;
+                }
+                if (everyTerm) {
+                    matches[found++] = sequence;
+                }
+            }
+            return Arrays.copyOf(matches, found);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the newest messages before the given sequence number that hold any of the given terms.
+     * The posting lists are read backwards from the cursor and merged, so only the returned part
+     * of each list is looked at.
+     *
+     * @return the sequence numbers of up to limit messages, oldest first
+     */
+    public long[] findNewest(List<String> anyTerms, long beforeSequence, int limit) {
+        lock.readLock().lock();
+        try {
+            ArrayList<Postings> lists = new ArrayList<>();
+            ArrayList<Integer> positions = new ArrayList<>();
+            for (String term : anyTerms) {
+                Postings postings = terms.get(term);
+                if (postings != null) {
+                    lists.add(postings);
+                    positions.add(postings.seek(beforeSequence, 0) - 1);
+                }
+            }
+
+            long[] newest = new long[limit];
+            int found = 0;
+            long previous = Long.MAX_VALUE;
+            while (found < limit) {
+                int next = -1;
+                for (int i = 0; i < lists.size(); i++) {
+                    int position = positions.get(i);
+                    if (position >= 0 && (next < 0 || lists.get(i).sequences[position] > lists.get(next).sequences[positions.get(next)])) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                long sequence = lists.get(next).sequences[positions.get(next)];
+                positions.set(next, positions.get(next) - 1);
+                if (sequence != previous) {
+                    newest[found++] = sequence;
+                    previous = sequence;
+                }
+            }
+
+            long[] oldestFirst = new long[found];
+            for (int i = 0; i < found; i++) {
+                oldestFirst[i] = newest[found - 1 - i];
+            }
+            return oldestFirst;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets the messages before the given sequence number, which retention deleted from the store.
+     */
+    public void removeBefore(long sequence) {
+        lock.writeLock().lock();
+        try {
+            Iterator<Postings> iterator = terms.values().iterator();
+            while (iterator.hasNext()) {
+                Postings postings = iterator.next();
+                postings.removeBefore(sequence);
+                if (postings.size == 0) {
+                    iterator.remove();
+                }
+            }
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets every message, used when the index is ahead of the store it belongs to.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            terms.clear();
+            nextSequence = 0;
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the next message to be indexed.
+     */
+    public long getNextSequence() {
+        lock.readLock().lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns how many distinct terms are indexed.
+     */
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the snapshot if messages were added since the last one. The snapshot is written to a
+     * temporary file that then replaces the old one atomically. Only the view of the posting lists is
+     * taken under the lock, the file is written while messages go on being added.
+     */
+    public void save() {
+        if (!dirty) {
+            return;
+        }
+        long savedSequence;
+        ArrayList<Map.Entry<String, Postings>> snapshot = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            dirty = false;
+            savedSequence = nextSequence;
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                snapshot.add(Map.entry(entry.getKey(), entry.getValue().view()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(savedSequence);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Postings> entry : snapshot) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().writeTo(out);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error in saving search index: " + e.getMessage());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Reads the snapshot, if there is one.
+     */
+    private void load() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a search index: " + path);
+            }
+            if (in.readInt() != VERSION) {
+                throw new IOException("Search index of another version: " + path);
+            }
+            nextSequence = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                terms.put(in.readUTF(), Postings.readFrom(in));
+            }
+        }
+    }
+
+    /**
+     * Returns the distinct terms a message is indexed under.
+     */
+    private static LinkedHashSet<String> termsOf(MmsMessage message) {
+        LinkedHashSet<String> messageTerms = new LinkedHashSet<>(tokenize(message.getText()));
+        ArrayList<String> participants = new ArrayList<>();
+        if (message.getSender() != null) {
+            addName(messageTerms, "from:", message.getSender());
+            participants.add(message.getSender().getUserName());
+        }
+        if (message.getReceivers() != null) {
+            for (User receiver : message.getReceivers().values()) {
+                addName(messageTerms, "to:", receiver);
+                participants.add(receiver.getUserName());
+            }
+        }
+        participants.removeIf(name -> name == null);
+        messageTerms.add(conversationTerm(participants));
+        return messageTerms;
+    }
+
+    /**
+     * Returns the term of the conversation between the given users, in any order.
+     * The term of a conversation with too many or too long names holds the hash of the names instead,
+     * so it stays short enough to be saved.
+     */
+    public static String conversationTerm(Collection<String> participants) {
+        String names = String.join("\n", new TreeSet<>(participants));
+        if (names.length() > MAX_CONVERSATION_TERM_LENGTH) {
+            return "conversation#" + Blobs.hash(names.getBytes(StandardCharsets.UTF_8));
+        }
+        return "conversation:" + names;
+    }
+
+    /**
+     * Returns the terms of every message a user sent or received.
+     */
+    public static List<String> userTerms(String userName) {
+        String name = userName.toLowerCase(Locale.ROOT);
+        return Arrays.asList("from:" + name, "to:" + name);
+    }
+
+    /**
+     * Adds a user's name both as a field term and as the words it is made of.
+     */
+    private static void addName(LinkedHashSet<String> messageTerms, String field, User user) {
+        if (user == null || user.getUserName() == null) {
+            return;
+        }
+        String name = user.getUserName().toLowerCase(Locale.ROOT);
+        if (name.length() <= MAX_TERM_LENGTH) {
+            messageTerms.add(field + name);
+        }
+        messageTerms.addAll(tokenize(name));
+    }
+
+    /**
+     * Splits a query into the terms that must all be found. "from:name" and "to:name" are matched
+     * against whole user names, anything else is split into words like the text of a message.
+     */
+    public static List<String> parseQuery(String query) {
+        ArrayList<String> queryTerms = new ArrayList<>();
+        if (query == null) {
+            return queryTerms;
+        }
+        for (String part : query.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            if ((part.startsWith("from:") || part.startsWith("to:")) && !part.endsWith(":")) {
+                queryTerms.add(part);
+            } else {
+                queryTerms.addAll(tokenize(part));
+            }
+        }
+        return queryTerms;
+    }
+
+    /**
+     * Splits text into lowercased runs of letters and digits, leaving out words too long to be useful.
+     */
+    public static List<String> tokenize(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordCharacter && start < 0) {
+                start = i;
+            } else if (!wordCharacter && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * The sorted sequence numbers of the messages holding one term, in a growable array.
+     */
+    private static class Postings {
+        private long[] sequences = new long[4];
+        private int size;
+
+        /**
+         * Appends a sequence number, which must be larger than every one before it.
+         */
+        void add(long sequence) {
+            if (size == sequences.length) {
+                sequences = Arrays.copyOf(sequences, size * 2);
+            }
+            sequences[size++] = sequence;
+        }
+
+        /**
+         * Returns the index of the first sequence number at or after the given one, searching from
+         * the given index, or the size if there is none.
+         */
+        int seek(long sequence, int from) {
+            int low = from;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sequences[middle] < sequence) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Drops the sequence numbers before the given one. The rest is moved to a new array, as
+         * views may still be reading the old one.
+         */
+        void removeBefore(long sequence) {
+            int first = seek(sequence, 0);
+            if (first > 0) {
+                sequences = Arrays.copyOfRange(sequences, first, Math.max(first + 4, size));
+                size -= first;
+            }
+        }
+
+        /**
+         * Returns a view of the sequence numbers added so far. It shares the array, which is safe
+         * because sequence numbers are only ever appended after the view's end or moved to a new array.
+         */
+        Postings view() {
+            Postings view = new Postings();
+            view.sequences = sequences;
+            view.size = size;
+            return view;
+        }
+
+        /**
+         * Writes the count and the gaps between the sequence numbers, seven bits to a byte,
+         * as the gaps of common terms are small.
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                long gap = sequences[i] - previous;
+                while (gap >= 0x80) {
+                    out.writeByte((int) (gap & 0x7F) | 0x80);
+                    gap >>>= 7;
+                }
+                out.writeByte((int) gap);
+                previous = sequences[i];
+            }
+        }
+
+        /**
+         * Reads postings written by writeTo.
+         */
+        static Postings readFrom(DataInputStream in) throws IOException {
+            Postings postings = new Postings();
+            int count = in.readInt();
+            postings.sequences = new long[Math.max(4, count)];
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                long gap = 0;
+                int shift = 0;
+                int value;
+                do {
+                    value = in.readUnsignedByte();
+                    gap |= (long) (value & 0x7F) << shift;
+                    shift += 7;
+                } while ((value & 0x80) != 0);
+                previous += gap;
+                postings.sequences[i] = previous;
+            }
+            postings.size = count;
+            return postings;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package Server;
+
+import Both.BinaryWireFormat;
+import Both.MmsMessage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of the message store, holding the records of consecutive messages.
+ * The file starts with a header naming the sequence number of its first message, followed by
+ * one record per message: its length, a CRC32C checksum, the message's server time and its binary frame.
+ * Only the newest segment is appended to; older ones are sealed and never change again.
+ * Record offsets and times are looked up the first time a segment is read, not when the server starts.
+ * Because messages are stamped in order, the times form a sorted long[] that is binary searched
+ * to find where a time range starts.
+ */
+public class Segment {
+    private static final int MAGIC = 0x43525347; // "CRSG"
+    private static final int VERSION = 2;
+    static final int HEADER_LENGTH = 32;
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private Path path;
+    private FileChannel channel;
+    private long baseSequence;
+    private long createdMillis;
+    private long lastMillis;
+    private int count;
+    private long size;
+    private int[] offsets;
+    private long[] times;
+
+    private Segment(Path path, FileChannel channel, long baseSequence, long createdMillis) {
+        this.path = path;
+        this.channel = channel;
+        this.baseSequence = baseSequence;
+        this.createdMillis = createdMillis;
+        this.lastMillis = createdMillis;
+        this.size = HEADER_LENGTH;
+    }
+
+    /**
+     * Creates a new empty segment whose first message gets the given sequence number.
+     */
+    public static Segment create(Path path, long baseSequence) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(path, channel, baseSequence, System.currentTimeMillis());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putLong(baseSequence).putLong(segment.createdMillis);
+        header.rewind();
+        channel.write(header, 0);
+        channel.force(true);
+        channel.position(HEADER_LENGTH);
+        segment.offsets = new int[64];
+        segment.times = new long[64];
+        return segment;
+    }
+
+    /**
+     * Opens a sealed segment using the facts kept in the manifest, reading nothing but its header.
+     */
+    public static Segment openSealed(Path path, int count, long lastMillis) throws IOException {
+        Segment segment = openHeader(path);
+        segment.count = count;
+        segment.lastMillis = lastMillis;
+        segment.size = Files.size(path);
+        return segment;
+    }
+
+    /**
+     * Opens the segment that was being appended to, scanning its records and cutting off a torn tail.
+     */
+    public static Segment recover(Path path) throws IOException {
+        Segment segment = openHeader(path);
+        segment.scanRecords(true);
+        segment.channel.position(segment.size);
+        return segment;
+    }
+
+    /**
+     * Opens a segment file and reads its header.
+     */
+    private static Segment openHeader(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            channel.close();
+            throw new IOException("Not a message segment: " + path);
+        }
+        return new Segment(path, channel, header.getLong(), header.getLong());
+    }
+
+    /**
+     * Walks the record headers to find the offset and time of every record.
+     * When repairing, the file is truncated at the first record that is incomplete or fails its checksum.
+     */
+    private void scanRecords(boolean repair) throws IOException {
+        long fileSize = channel.size();
+        long position = HEADER_LENGTH;
+        int found = 0;
+        int[] foundOffsets = new int[64];
+        long[] foundTimes = new long[64];
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+
+        while (position + RECORD_HEADER_LENGTH <= fileSize) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            long time = header.getLong();
+            if (length < 0 || length > BinaryWireFormat.MAX_FRAME_LENGTH || position + RECORD_HEADER_LENGTH + length > fileSize) {
+                break;
+            }
+            if (repair) {
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                channel.read(payload, position + RECORD_HEADER_LENGTH);
+                payload.flip();
+                if (checksum(payload) != checksum) {
+                    break;
+                }
+            }
+
+            if (found == foundOffsets.length) {
+                foundOffsets = Arrays.copyOf(foundOffsets, found * 2);
+                foundTimes = Arrays.copyOf(foundTimes, found * 2);
+            }
+            foundOffsets[found] = (int) position;
+            foundTimes[found++] = time;
+            position += RECORD_HEADER_LENGTH + length;
+        }
+
+        if (repair && position < fileSize) {
+            System.out.println("Truncating torn tail of " + path + " at byte " + position);
+            channel.truncate(position);
+            channel.force(true);
+        }
+        offsets = foundOffsets;
+        times = foundTimes;
+        count = found;
+        size = position;
+        if (found > 0) {
+            lastMillis = foundTimes[found - 1];
+        }
+    }
+
+    /**
+     * Appends the record of a message. A record that fails halfway is cut off again, so the message
+     * can be appended once more.
+     *
+     * @param frame the binary frame of the message
+     * @param time the server time of the message in epoch milliseconds
+     * @return the sequence number of the message
+     */
+    public synchronized long append(ByteBuffer frame, long time) throws IOException {
+        if (offsets == null) {
+            scanRecords(false);
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        header.putInt(frame.remaining());
+        header.putInt(checksum(frame));
+        header.putLong(time);
+        header.flip();
+
+        long offset = size;
+        ByteBuffer[] record = {header, frame};
+        try {
+            while (frame.hasRemaining()) {
+                size += channel.write(record);
+            }
+        } catch (IOException e) {
+            channel.truncate(offset);
+            size = offset;
+            throw e;
+        }
+
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            times = Arrays.copyOf(times, count * 2);
+        }
+        offsets[count] = (int) offset;
+        times[count] = time;
+        lastMillis = time;
+        return baseSequence + count++;
+    }
+
+    /**
+     * Returns the server time of the message with the given sequence number, which must be in this segment.
+     */
+    public synchronized long getTime(long sequence) throws IOException {
+        if (offsets == null) {
+            scanRecords(false);
+        }
+        return times[(int) (sequence - baseSequence)];
+    }
+
+    /**
+     * Finds the first message in this segment stamped at or after the given time.
+     *
+     * @return its sequence number, or the sequence number after this segment if there is none
+     */
+    public synchronized long findFirstAtOrAfter(long millis) throws IOException {
+        if (offsets == null) {
+            scanRecords(false);
+        }
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < millis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return baseSequence + low;
+    }
+
+    /**
+     * Reads the message with the given sequence number, which must be in this segment.
+     * The message gets its sequence number from its place in the store, as messages stored before
+     * the frames carried it have none.
+     */
+    public synchronized MmsMessage read(long sequence) throws IOException {
+        if (offsets == null) {
+            scanRecords(false);
+        }
+        long offset = offsets[(int) (sequence - baseSequence)];
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        channel.read(header, offset);
+        header.flip();
+
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+        while (payload.hasRemaining()) {
+            if (channel.read(payload, offset + RECORD_HEADER_LENGTH + payload.position()) < 0) {
+                throw new EOFException("Record cut short in " + path);
+            }
+        }
+        payload.flip();
+        MmsMessage message = (MmsMessage) new BinaryWireFormat(Server.getUserRegistry()::get).decode(payload);
+        message.setSequence(sequence);
+        return message;
+    }
+
+    /**
+     * Forces the appended records to disk.
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Closes and deletes the segment file.
+     */
+    public void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Returns the path of the segment file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the sequence number of the first message in this segment.
+     */
+    public long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * Returns when the segment was created, in epoch milliseconds.
+     */
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /**
+     * Returns the server time of the last message, in epoch milliseconds.
+     */
+    public synchronized long getLastMillis() {
+        return lastMillis;
+    }
+
+    /**
+     * Returns the number of messages in this segment.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the size of the segment file in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Computes the checksum of the remaining bytes without moving the buffer's position.
+     */
+    static int checksum(ByteBuffer bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.duplicate());
+        return (int) crc.getValue();
+    }
+}
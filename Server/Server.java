@@ -1,17 +1,37 @@
 package Server;
 
 import Both.*;
+import java.io.IOException;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manages the lifecycle and operations of the server, including handling client connections,
  * broadcasting messages, and providing server functionalities.
  */
 public class Server {
-    private static HashMap<String, ClientHandler> clients = new HashMap<>();
+    private static ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private static ReentrantLock presenceLock = new ReentrantLock();
+    private static ReentrantLock stampLock = new ReentrantLock();
+    private static LogWriter logWriter;
+    private static AtomicLong lastStamp = new AtomicLong();
+    private static long nextSequence;
+    private static BlobStore blobStore;
+    private static UserRegistry userRegistry;
+    private static MailboxStore mailboxStore;
+    private static PresenceAggregator presence = new PresenceAggregator(ServerConfig.getPresenceWindow(), Server::flushPresence);
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm");
 
     /**
      * The entry point of the server application. Starts the server and initializes necessary components.
@@ -21,26 +41,117 @@ public class Server {
     }
 
     /**
-     * Initializes the server user interface and starts the client reception process.
-     * Also sets up the global chat system.
+     * Initializes the server user interface and starts the client reception process
+     * in the mode selected with the "chat.mode" system property.
+     * Also sets up the global chat system, the image blob store, the user registry and the mailboxes.
      */
     public static void startServer() {
+        blobStore = new BlobStore("blobs");
+        userRegistry = new UserRegistry("users.dat");
+        mailboxStore = new MailboxStore("mailboxes");
         ServerViewer window = new ServerViewer();
         window.startServerUi();
 
-        new ClientReceiver(4455);
         MessageLogg.setup();
+        nextSequence = MessageLogg.getNextSequence();
+        logWriter = new LogWriter();
+        startStatsLog();
+        if (ServerConfig.getMode() == ServerMode.NIO) {
+            new NioReceiver(ServerConfig.getPort());
+        } else {
+            new ClientReceiver(ServerConfig.getPort());
+        }
+    }
+
+    /**
+     * Logs the state of the outbound queues every "chat.statsIntervalMs" milliseconds, unless that is 0.
+     */
+    private static void startStatsLog() {
+        long interval = ServerConfig.getStatsInterval();
+        if (interval <= 0) {
+            return;
+        }
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(Server::logStats, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Logs how many messages wait for the clients in total, the fullest any ring has been, and how many
+     * messages the overflow policies dropped and spilled to the mailboxes.
+     * For clients on protocol version 0 it also logs how many objects their serialization streams keep
+     * for back-references and how often the streams were reset to let go of them.
+     */
+    private static void logStats() {
+        long waiting = 0;
+        long highWater = 0;
+        long dropped = 0;
+        long spilled = 0;
+        int serializedClients = 0;
+        long retainedHandles = 0;
+        long resets = 0;
+        for (ClientHandler client : clients.values()) {
+            OutboundQueue queue = client.getMessagesToSend();
+            waiting += queue.getDepth();
+            highWater = Math.max(highWater, queue.getHighWater());
+            dropped += queue.getDropped();
+            spilled += queue.getSpilled();
+
+            Connection connection = client.getConnection();
+            if (connection != null && connection.getFormat() instanceof SerializedWireFormat format) {
+                serializedClients++;
+                retainedHandles += format.getRetainedHandles();
+                resets += format.getResets();
+            }
+        }
+        System.out.println("Outbound queues: clients=" + clients.size() + " waiting=" + waiting + " highWater=" + highWater
+                + " dropped=" + dropped + " spilled=" + spilled);
+        if (serializedClients > 0) {
+            System.out.println("Serialization streams: clients=" + serializedClients + " retainedHandles=" + retainedHandles
+                    + " resets=" + resets);
+        }
     }
 
     /**
      * Retrieves the map of connected clients.
      *
-     * @return a HashMap where keys are usernames and values are ClientHandler objects
+     * @return a concurrent map where keys are usernames and values are ClientHandler objects
      */
-    public static HashMap<String, ClientHandler> getClients() {
+    public static ConcurrentHashMap<String, ClientHandler> getClients() {
         return clients;
     }
 
+    /**
+     * Retrieves the store holding the images of messages and profiles.
+     */
+    public static BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Retrieves the registry that gives users their ids and profiles.
+     */
+    public static UserRegistry getUserRegistry() {
+        return userRegistry;
+    }
+
+    /**
+     * Retrieves the thread that appends routed messages to the message log.
+     */
+    public static LogWriter getLogWriter() {
+        return logWriter;
+    }
+
+    /**
+     * Retrieves the mailboxes holding the messages of users that are offline.
+     */
+    public static MailboxStore getMailboxStore() {
+        return mailboxStore;
+    }
+
     /**
      * Retrieves all currently online users.
      *
@@ -56,34 +167,160 @@ public class Server {
         return tempList;
     }
 
+    /**
+     * Processes a new Message received from a client. Blob uploads and requests, presence and history
+     * requests and acks only concern the stores and the client that sent them, so they are handled right away.
+     */
+    public static void newMessage(Message message, ClientHandler from) {
+        try {
+            if (message instanceof BlobMessage blob) {
+                blobStore.put(blob.getHash(), blob.getData());
+            } else if (message instanceof BlobChunkMessage chunk) {
+                blobStore.append(chunk.getHash(), chunk.getOffset(), chunk.getLength(), chunk.getData());
+            } else if (message instanceof BlobOffsetMessage question) {
+                from.sendMessage(new BlobOffsetMessage(question.getHash(), blobStore.getUploadOffset(question.getHash())));
+            } else if (message instanceof BlobRequestMessage request) {
+                from.sendMessage(new BlobMessage(request.getHash(), blobStore.get(request.getHash())));
+            } else if (message instanceof PresenceRequestMessage) {
+                sendPresenceSnapshot(from);
+            } else if (message instanceof HistoryRequestMessage request) {
+                from.sendMessage(getHistory(from.getUser(), request));
+            } else if (message instanceof AckMessage ack) {
+                from.getMessagesToSend().acknowledge(ack.getSequence());
+            } else {
+                newMessage(message);
+            }
+        } catch (IOException e) {
+            System.out.println("Error in handling blob: " + e.getMessage());
+        }
+    }
+
     /**
      * Processes a new Message received by the server. Depending on the type of message,
      * it delegates the processing to appropriate methods.
+     * Messages from different clients are routed in parallel: the log write is left to the log writer
+     * and delivery only queues the message for each receiver. Only presence changes share a lock.
      */
-    public synchronized static void newMessage(Message message) {
+    public static void newMessage(Message message) {
         if (message instanceof MmsMessage) {
-            MessageLogg.addMessage((MmsMessage) message);
-            processMmsMessage((MmsMessage) message);
+            OutgoingMessage outgoing = stampMmsMessage((MmsMessage) message);
+            if (outgoing != null) {
+                processMmsMessage(outgoing);
+            }
         } else if (message instanceof ClientUpdateMessage) {
-            ((ClientUpdateMessage) message).setUserList(getAllOnlineUsers());
-            processUpdateMessage((ClientUpdateMessage) message);
+            presenceLock.lock();
+            try {
+                // Pass on a copy of the user's profile rather than the User the client sent
+                User user = ((ClientUpdateMessage) message).getUser();
+                User profile = userRegistry.get(user.getUserName());
+                if (profile == null) {
+                    return;
+                }
+                profile.setConnected(user.getConnected());
+                processUpdateMessage(new ClientUpdateMessage(copyOfProfile(profile)));
+            } finally {
+                presenceLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds the server timestamp and sequence number to a MmsMessage, wraps it for sending and hands it to the log writer.
+     * Stamping and queueing for the log happen under a short lock, so the log gets the messages in
+     * stamp order and every message's sequence number is its place in the message store. Stamps never go backwards, even if the clock does, so the message store stays sorted by time.
+     * The wrapper is shared by the message log and all receivers, so the message is encoded only once.
+     * An image sent inline is moved to the blob store first, so only its hash is logged and sent,
+     * and the sender and receivers are replaced by their profiles, so they are referenced by id.
+     * Users are only looked up, never registered here: a message from an unknown sender is dropped,
+     * and receivers that are not registered are left out.
+     *
+     * @return the stamped message, or null if it was dropped
+     */
+    public static OutgoingMessage stampMmsMessage(MmsMessage message) {
+        User sender = userRegistry.get(message.getSender().getUserName());
+        if (sender == null) {
+            System.out.println("Dropping message from unknown user " + message.getSender().getUserName());
+            return null;
+        }
+        message.setSender(sender);
+        message.getReceivers().values().removeIf(receiver -> userRegistry.get(receiver.getUserName()) == null);
+        message.getReceivers().replaceAll((userName, receiver) -> userRegistry.get(receiver.getUserName()));
+        moveImageToBlobStore(message);
+
+        stampLock.lock();
+        try {
+            long now = lastStamp.accumulateAndGet(System.currentTimeMillis(), Math::max);
+            message.setServerTimeMillis(now);
+            message.setServerTime(DATE_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(now), ZoneId.systemDefault())));
+            message.setSequence(nextSequence++);
+            OutgoingMessage outgoing = new OutgoingMessage(message);
+            logWriter.submit(outgoing);
+            return outgoing;
+        } finally {
+            stampLock.unlock();
+        }
+    }
+
+    /**
+     * Moves an image sent inline with a message to the blob store and attaches it by its hash instead.
+     */
+    static void moveImageToBlobStore(MmsMessage message) {
+        if (message.getImage() != null && message.getImageHash() == null && blobStore != null) {
+            try {
+                byte[] image = Blobs.toImageBytes(message.getImage());
+                if (image != null) {
+                    blobStore.put(image);
+                    message.setAttachment(Blobs.toAttachment(image));
+                    message.getAttachment().setData(null);
+                }
+                message.setImage(null);
+            } catch (IOException e) {
+                System.out.println("Error in storing message image: " + e.getMessage());
+            }
         }
     }
 
     /**
-     * Processes a MmsMessage by adding a server timestamp and sending it to appropriate clients.
+     * Processes a stamped MmsMessage by queueing it for the appropriate clients.
+     * A receiver that has not connected since the server started gets the message in its mailbox,
+     * and so does the sender's own copy if the sender's handler is gone.
      */
-    public static void processMmsMessage(MmsMessage message) {
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm");
-        String serverTime = dtf.format(LocalDateTime.now());
-        message.setServerTime(serverTime);
+    public static void processMmsMessage(OutgoingMessage outgoing) {
+        MmsMessage message = (MmsMessage) outgoing.getMessage();
 
         for (User receiver : message.getReceivers().values()) {
-            if (!receiver.getUserName().equals(message.getSender().getUserName()) && clients.containsKey(receiver.getUserName())) {
-                clients.get(receiver.getUserName()).sendMessage(message);
+            if (receiver.getUserName().equals(message.getSender().getUserName())) {
+                continue;
+            }
+            ClientHandler client = clients.get(receiver.getUserName());
+            if (client != null) {
+                client.sendMessage(outgoing);
+            } else {
+                leaveInMailbox(receiver, outgoing);
             }
         }
-        clients.get(message.getSender().getUserName()).sendMessage(message);
+        ClientHandler sender = clients.get(message.getSender().getUserName());
+        if (sender != null) {
+            sender.sendMessage(outgoing);
+        } else {
+            leaveInMailbox(message.getSender(), outgoing);
+        }
+    }
+
+    /**
+     * Appends a message to the mailbox of a user who has no client handler.
+     * Mailboxes are only kept for registered users, so no file is ever made for an id nobody has.
+     */
+    private static void leaveInMailbox(User receiver, OutgoingMessage outgoing) {
+        if (userRegistry.get(receiver.getId()) == null) {
+            System.out.println("Not leaving message for unknown user " + receiver.getUserName());
+            return;
+        }
+        try {
+            mailboxStore.get(receiver.getId()).append(outgoing);
+        } catch (IOException e) {
+            System.err.println("Error in leaving message for " + receiver.getUserName() + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -98,65 +335,166 @@ public class Server {
     }
 
     /**
-     * Handles the event when a new client joins. Notifies all connected clients of the new client.
+     * Handles the event when a new client joins. The new client gets a snapshot of the online users,
+     * all connected clients get the join with the next presence delta.
      */
     public static void clientJoined(ClientUpdateMessage message) {
-        for (ClientHandler client : clients.values()) {
-            if (client.getUser().getConnected()) {
-                client.sendMessage(message);
+        recordPresence(message.getUser());
+        ClientHandler joined = clients.get(message.getUser().getUserName());
+        if (joined != null) {
+            sendPresenceSnapshot(joined);
+        }
+    }
+
+    /**
+     * Sends a client a snapshot of the online users at the current presence version.
+     * The lock keeps the snapshot in line with the deltas sent before and after it.
+     */
+    public static void sendPresenceSnapshot(ClientHandler client) {
+        presenceLock.lock();
+        try {
+            ClientUpdateMessage snapshot = new ClientUpdateMessage(copyOfProfile(client.getUser()));
+            snapshot.setUserList(presence.getAnnouncedUsers());
+            snapshot.setPresenceVersion(presence.getVersion());
+            client.sendMessage(snapshot);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    /**
+     * Records a join or leave for the next presence delta, which goes out at the end of the
+     * "chat.presenceWindowMs" window or right away if there is no window.
+     */
+    private static void recordPresence(User user) {
+        if (presence.record(user)) {
+            flushPresence();
+        }
+    }
+
+    /**
+     * Sends the joins and leaves of the presence window that just ended to all connected clients,
+     * as one delta that is encoded once.
+     */
+    public static void flushPresence() {
+        presenceLock.lock();
+        try {
+            PresenceDeltaMessage delta = presence.drain();
+            if (delta == null) {
+                return;
+            }
+            OutgoingMessage outgoing = new OutgoingMessage(delta);
+            for (ClientHandler client : clients.values()) {
+                if (client.getUser().getConnected()) {
+                    client.sendMessage(outgoing);
+                }
             }
+        } finally {
+            presenceLock.unlock();
         }
     }
 
     /**
-     * Handles the event when a client leaves. Updates client statuses and notifies all connected clients.
+     * Handles the event when a client leaves. Updates client statuses, all connected clients get the
+     * leave with the next presence delta.
      */
     public static void clientLeft(ClientUpdateMessage message) {
         if (clients.containsKey(message.getUser().getUserName())) {
             clients.get(message.getUser().getUserName()).getUser().setConnected(false);
         }
+        recordPresence(message.getUser());
+    }
 
-        for (ClientHandler client : clients.values()) {
-            if (client.getUser().getConnected()) {
-                client.sendMessage(message);
-            }
+    /**
+     * Returns a copy of a profile for a presence update. Profiles are shared, and a Java serialization
+     * stream would only refer back to a profile it already wrote, with the connected status it had then.
+     */
+    private static User copyOfProfile(User profile) {
+        User copy = new User(profile.getUserName(), profile.getImage());
+        copy.setId(profile.getId());
+        copy.setImageHash(profile.getImageHash());
+        copy.setConnected(profile.getConnected());
+        return copy;
+    }
+
+    /**
+     * Reads one page of a conversation's history for a client, straight from the message store through
+     * its index. The client always takes part in the conversation, so it only gets messages it sent or
+     * received; without other participants it gets all of them.
+     */
+    public static HistoryMessage getHistory(User user, HistoryRequestMessage request) {
+        List<String> terms;
+        if (request.getParticipants().isEmpty()) {
+            terms = SearchIndex.userTerms(user.getUserName());
+        } else {
+            ArrayList<String> participants = new ArrayList<>(request.getParticipants());
+            participants.add(user.getUserName());
+            terms = List.of(SearchIndex.conversationTerm(participants));
+        }
+
+        int count = Math.max(0, Math.min(request.getCount(), ServerConfig.getMaxHistory()));
+        try {
+            MessagePage page = MessageLogg.getHistory(terms, request.getBefore(), count);
+            // the user terms ignore case, only the messages of this exact user are sent
+            page.getMessages().removeIf(message -> !message.getSender().getUserName().equals(user.getUserName())
+                    && !message.getReceivers().containsKey(user.getUserName()));
+            return new HistoryMessage(request.getParticipants(), page.getMessages(), page.getNextCursor());
+        } catch (IOException e) {
+            System.out.println("Error in reading history: " + e.getMessage());
+            return new HistoryMessage(request.getParticipants(), new ArrayList<>(), -1);
         }
     }
 
     /**
-     * Retrieves messages within a specified date range.
+     * Retrieves one page of the messages within a specified date range.
+     * Both dates are inclusive to the minute. The start of the range is found through the message
+     * store's time index, so the cost does not grow with the number of older messages.
      *
      * @param fromDate the start date in "yyyy/MM/dd HH:mm" format
      * @param toDate the end date in "yyyy/MM/dd HH:mm" format
-     * @return a list of MmsMessage objects within the date range
+     * @param cursor the cursor of the previous page, or -1 for the first page
+     * @param pageSize the maximum number of messages on the page
+     * @return a page of MmsMessage objects within the date range
      */
-    public static ArrayList<MmsMessage> getMessagesBasedOnDate(String fromDate, String toDate) {
+    public static MessagePage getMessagesBasedOnDate(String fromDate, String toDate, long cursor, int pageSize) {
         if (!validateDates(fromDate, toDate)) {
-            return new ArrayList<>();
+            return new MessagePage(new ArrayList<>(), -1);
         }
 
-        for (int i = 0; i < MessageLogg.getMessages().size(); i++) {
-            if (checkMessageDate(fromDate, MessageLogg.getMessages().get(i))) {
-                for (int u = i; u < MessageLogg.getMessages().size(); u++) {
-                    if (checkMessageDate(toDate, MessageLogg.getMessages().get(u))) {
-                        return getMmsMessagesInterval(i, u);
-                    }
-                }
-            }
+        long fromMillis = toEpochMillis(fromDate);
+        long toMillis = toEpochMillis(toDate) + TimeUnit.MINUTES.toMillis(1);
+        try {
+            return MessageLogg.getMessagesBetween(fromMillis, toMillis, cursor, pageSize);
+        } catch (IOException e) {
+            System.out.println("Error in reading messages: " + e.getMessage());
+            return new MessagePage(new ArrayList<>(), -1);
         }
-        return new ArrayList<>();
     }
 
     /**
-     * Checks if a message's date is within or after the specified date.
+     * Retrieves one page of the messages within a specified date range that hold every word of a query.
+     * The words are looked up in the message store's search index, so only matching messages are read.
      *
-     * @param date the date to check against in "yyyy/MM/dd HH:mm" format
-     * @param message the MmsMessage to check
-     * @return true if the message's date is on or after the specified date; false otherwise
+     * @param query the words to search for, with "from:name" and "to:name" for the sender and receivers
+     * @param fromDate the start date in "yyyy/MM/dd HH:mm" format
+     * @param toDate the end date in "yyyy/MM/dd HH:mm" format
+     * @param cursor the cursor of the previous page, or -1 for the first page
+     * @param pageSize the maximum number of messages on the page
+     * @return a page of matching MmsMessage objects within the date range
      */
-    public static boolean checkMessageDate(String date, MmsMessage message) {
-        String tempMessageDate = message.getServerTime();
-        return tempMessageDate.compareTo(date) >= 0;
+    public static MessagePage searchMessages(String query, String fromDate, String toDate, long cursor, int pageSize) {
+        if (!validateDates(fromDate, toDate)) {
+            return new MessagePage(new ArrayList<>(), -1);
+        }
+
+        long fromMillis = toEpochMillis(fromDate);
+        long toMillis = toEpochMillis(toDate) + TimeUnit.MINUTES.toMillis(1);
+        try {
+            return MessageLogg.searchMessages(query, fromMillis, toMillis, cursor, pageSize);
+        } catch (IOException e) {
+            System.out.println("Error in searching messages: " + e.getMessage());
+            return new MessagePage(new ArrayList<>(), -1);
+        }
     }
 
     /**
@@ -168,8 +506,8 @@ public class Server {
      */
     public static boolean validateDates(String fromDate, String toDate) {
         try {
-            LocalDateTime.parse(fromDate, DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm"));
-            LocalDateTime.parse(toDate, DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm"));
+            LocalDateTime.parse(fromDate, DATE_FORMAT);
+            LocalDateTime.parse(toDate, DATE_FORMAT);
             return true;
         } catch (Exception e) {
             System.out.println("Invalid date format");
@@ -178,14 +516,9 @@ public class Server {
     }
 
     /**
-     * Retrieves a list of MMS messages between specified start and end indices.
-     *
-     * @param startIndex the starting index of the messages
-     * @param endIndex the ending index of the messages
-     * @return a list of MmsMessage objects between the specified indices
+     * Converts a date in "yyyy/MM/dd HH:mm" format in the server's time zone to epoch milliseconds.
      */
-    public static ArrayList<MmsMessage> getMmsMessagesInterval(int startIndex, int endIndex) {
-        ArrayList<MmsMessage> temp = new ArrayList<>(MessageLogg.getMessages().subList(startIndex, endIndex + 1));
-        return temp;
+    public static long toEpochMillis(String date) {
+        return LocalDateTime.parse(date, DATE_FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
@@ -0,0 +1,271 @@
+package Server;
+
+import Both.WireFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the server's startup settings from system properties, e.g. -Dchat.mode=nio.
+ * Every setting has a default so the server can still be started without any arguments.
+ */
+public class ServerConfig {
+
+    /**
+     * Returns the connection mode the server should run in.
+     *
+     * @return the mode from "chat.mode", or BLOCKING if it is missing or unknown
+     */
+    public static ServerMode getMode() {
+        String mode = System.getProperty("chat.mode", "blocking");
+        try {
+            return ServerMode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown server mode " + mode + ", using blocking");
+            return ServerMode.BLOCKING;
+        }
+    }
+
+    /**
+     * Returns the port the server listens on.
+     */
+    public static int getPort() {
+        return Integer.getInteger("chat.port", 4455);
+    }
+
+    /**
+     * Returns the number of selector event loops used in NIO mode.
+     */
+    public static int getEventLoops() {
+        return Integer.getInteger("chat.eventLoops", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Returns how many threads route the messages the event loops decode in NIO mode.
+     */
+    public static int getRoutingThreads() {
+        return Integer.getInteger("chat.routingThreads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns how many decoded messages of one NIO client may wait to be routed before its channel is no longer read.
+     */
+    public static int getMaxUnrouted() {
+        return Integer.getInteger("chat.maxUnrouted", 64);
+    }
+
+    /**
+     * Returns the size in bytes of the pooled read buffers used in NIO mode.
+     */
+    public static int getBufferSize() {
+        return Integer.getInteger("chat.bufferSize", 16 * 1024);
+    }
+
+    /**
+     * Returns how many idle read buffers each event loop keeps for reuse.
+     */
+    public static int getPooledBuffers() {
+        return Integer.getInteger("chat.pooledBuffers", 256);
+    }
+
+    /**
+     * Returns the newest wire protocol version the server agrees to, 0 forces Java serialization.
+     */
+    public static int getProtocolVersion() {
+        return Integer.getInteger("chat.protocol", WireFormat.LATEST_VERSION);
+    }
+
+    /**
+     * Returns when the message log forces its records to disk.
+     *
+     * @return the policy from "chat.fsync", or GROUP if it is missing or unknown
+     */
+    public static FsyncPolicy getFsyncPolicy() {
+        String policy = System.getProperty("chat.fsync", "group");
+        try {
+            return FsyncPolicy.valueOf(policy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown fsync policy " + policy + ", using group");
+            return FsyncPolicy.GROUP;
+        }
+    }
+
+    /**
+     * Returns how often in milliseconds the message log forces its records to disk with the GROUP policy.
+     */
+    public static long getFsyncInterval() {
+        return Long.getLong("chat.fsyncIntervalMs", 100);
+    }
+
+    /**
+     * Returns the size in bytes after which the message store starts a new segment.
+     */
+    public static long getSegmentBytes() {
+        return Math.min(Long.getLong("chat.segmentBytes", 64L * 1024 * 1024), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the age in milliseconds after which the message store starts a new segment.
+     */
+    public static long getSegmentMaxAge() {
+        return TimeUnit.HOURS.toMillis(Long.getLong("chat.segmentMaxAgeHours", 24));
+    }
+
+    /**
+     * Returns how long in milliseconds old segments are kept, or 0 to keep them forever.
+     */
+    public static long getRetentionAge() {
+        return TimeUnit.DAYS.toMillis(Long.getLong("chat.retentionDays", 0));
+    }
+
+    /**
+     * Returns how many bytes of segments are kept before the oldest are deleted, or 0 for no limit.
+     */
+    public static long getRetentionBytes() {
+        return Long.getLong("chat.retentionBytes", 0);
+    }
+
+    /**
+     * Returns how often in milliseconds the search index is saved next to the message store.
+     */
+    public static long getIndexSaveInterval() {
+        return Long.getLong("chat.indexSaveIntervalMs", 60000);
+    }
+
+    /**
+     * Returns how long in milliseconds joins and leaves are collected before one presence update is sent,
+     * or 0 to send every change right away.
+     */
+    public static long getPresenceWindow() {
+        return Long.getLong("chat.presenceWindowMs", 100);
+    }
+
+    /**
+     * Returns how many messages the outbound queue of each client holds, rounded up to a power of two.
+     */
+    public static int getOutboundQueueSize() {
+        return Integer.getInteger("chat.outboundQueue", 1024);
+    }
+
+    /**
+     * Returns how often in milliseconds the server logs the state of the outbound queues, or 0 to never log it.
+     */
+    public static long getStatsInterval() {
+        return Long.getLong("chat.statsIntervalMs", 60000);
+    }
+
+    /**
+     * Returns what happens to a message for a client whose outbound queue is full.
+     *
+     * @return the policy from "chat.overflow", or SPILL if it is missing or unknown
+     */
+    public static OverflowPolicy getOverflowPolicy() {
+        String policy = System.getProperty("chat.overflow", "spill");
+        try {
+            return OverflowPolicy.valueOf(policy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown overflow policy " + policy + ", using spill");
+            return OverflowPolicy.SPILL;
+        }
+    }
+
+    /**
+     * Returns how many messages are read from a mailbox on disk at a time when they are delivered.
+     */
+    public static int getMailboxBatch() {
+        return Integer.getInteger("chat.mailboxBatch", 64);
+    }
+
+    /**
+     * Returns how long in milliseconds a mailbox may go without appends before its file is closed.
+     */
+    public static long getMailboxIdleTime() {
+        return Long.getLong("chat.mailboxIdleMs", 10000);
+    }
+
+    /**
+     * Returns how many bytes of delivered records a mailbox collects before they are cut off its file.
+     */
+    public static long getMailboxCompactBytes() {
+        return Long.getLong("chat.mailboxCompactBytes", 1024 * 1024);
+    }
+
+    /**
+     * Returns the most messages a client gets in one page of history.
+     */
+    public static int getMaxHistory() {
+        return Integer.getInteger("chat.maxHistory", 200);
+    }
+
+    /**
+     * Returns how many of the newest logged messages are searched for a client's missed messages
+     * when it reconnects after a server restart.
+     */
+    public static int getMaxReplay() {
+        return Integer.getInteger("chat.maxReplay", 10000);
+    }
+
+    /**
+     * Returns how long in milliseconds a reconnecting client waits for the message log to catch up
+     * with the messages it missed before they are replayed.
+     */
+    public static long getReplayWait() {
+        return Long.getLong("chat.replayWaitMs", 5000);
+    }
+
+    /**
+     * Returns the size in bytes of the buffer a blocking connection collects its writes in before flushing them.
+     */
+    public static int getWriteBufferSize() {
+        return Integer.getInteger("chat.writeBuffer", 16 * 1024);
+    }
+
+    /**
+     * Returns the longest time in milliseconds a written message may wait in a blocking connection's
+     * buffer for more messages to be flushed with it.
+     */
+    public static long getFlushDelay() {
+        return Long.getLong("chat.flushDelay", 1);
+    }
+
+    /**
+     * Returns how many messages a protocol version 0 connection writes before it resets its object stream,
+     * which lets go of the objects it kept for back-references. 0 means no limit.
+     */
+    public static int getResetMessages() {
+        return Integer.getInteger("chat.resetMessages", 256);
+    }
+
+    /**
+     * Returns how many bytes a protocol version 0 connection writes before it resets its object stream. 0 means no limit.
+     */
+    public static long getResetBytes() {
+        return Long.getLong("chat.resetBytes", 1024 * 1024);
+    }
+
+    /**
+     * Returns the largest blob in bytes a client may upload in chunks.
+     */
+    public static long getMaxBlobBytes() {
+        return Long.getLong("chat.maxBlob", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Returns how many threads run the handshakes of blocking clients. VIRTUAL mode uses a virtual thread per handshake.
+     */
+    public static int getHandshakeThreads() {
+        return Integer.getInteger("chat.handshakeThreads", 8);
+    }
+
+    /**
+     * Returns how many handshakes may be queued or running before new clients are turned away.
+     */
+    public static int getMaxPendingHandshakes() {
+        return Integer.getInteger("chat.maxPendingHandshakes", 1024);
+    }
+
+    /**
+     * Returns how long in milliseconds a client may take to send its hello and its ClientUpdateMessage.
+     */
+    public static long getHandshakeTimeout() {
+        return Long.getLong("chat.handshakeTimeout", 10000);
+    }
+}
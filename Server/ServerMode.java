@@ -0,0 +1,22 @@
+package Server;
+
+/**
+ * The ways the server can serve its client connections. The mode is chosen at startup
+ * with the "chat.mode" system property, see ServerConfig.
+ */
+public enum ServerMode {
+    /**
+     * One platform thread per client that blocks while reading from the socket.
+     */
+    BLOCKING,
+
+    /**
+     * Blocking connections like BLOCKING, but every client is served by a cheap virtual thread.
+     */
+    VIRTUAL,
+
+    /**
+     * A small pool of selector event loops that multiplex all non-blocking client channels.
+     */
+    NIO
+}
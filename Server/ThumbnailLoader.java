@@ -0,0 +1,122 @@
+package Server;
+
+import Both.MmsMessage;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Makes the thumbnails of message images for the server's search results on a background thread.
+ * Only the thumbnails that are asked for are made, which are those of the rows being painted, and the
+ * most recently used ones are kept, so scrolling back does not decode the images again.
+ * Images are read from the blob store, or taken from the message for images that were stored inline.
+ */
+public class ThumbnailLoader {
+    private static final int MAX_THUMBNAILS = 500;
+    private static final Icon NO_IMAGE = new ImageIcon();
+
+    private int size;
+    private Runnable onLoaded;
+    private LinkedHashMap<String, Icon> thumbnails = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Icon> eldest) {
+            return size() > MAX_THUMBNAILS;
+        }
+    };
+    private HashSet<String> loading = new HashSet<>();
+    private ExecutorService loader = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "thumbnails");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a ThumbnailLoader making square thumbnails of the given size.
+     *
+     * @param onLoaded run on the event thread whenever a thumbnail is ready
+     */
+    public ThumbnailLoader(int size, Runnable onLoaded) {
+        this.size = size;
+        this.onLoaded = onLoaded;
+    }
+
+    /**
+     * Returns the thumbnail of a message's image, or null if the message has no image or its
+     * thumbnail is not made yet, in which case it is made in the background. An image that cannot be
+     * read gets an empty icon. Called on the event thread.
+     */
+    public Icon get(MmsMessage message) {
+        String key = keyOf(message);
+        if (key == null) {
+            return null;
+        }
+        Icon thumbnail = thumbnails.get(key);
+        if (thumbnail == null && loading.add(key)) {
+            loader.execute(() -> {
+                Icon made = makeThumbnail(message);
+                SwingUtilities.invokeLater(() -> {
+                    loading.remove(key);
+                    thumbnails.put(key, made != null ? made : NO_IMAGE); // a missing image is not read again
+                    if (made != null) {
+                        onLoaded.run();
+                    }
+                });
+            });
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Forgets the thumbnails, so a new search does not keep the images of the last one.
+     */
+    public void clear() {
+        thumbnails.clear();
+    }
+
+    /**
+     * Returns the key of a message's image: the blob hash, or the sequence number for an inline image.
+     */
+    private static String keyOf(MmsMessage message) {
+        if (message.getImageHash() != null) {
+            return message.getImageHash();
+        }
+        return message.getImage() != null ? "message:" + message.getSequence() : null;
+    }
+
+    /**
+     * Decodes a message's image and draws it scaled into the thumbnail.
+     */
+    private Icon makeThumbnail(MmsMessage message) {
+        try {
+            Image image;
+            if (message.getImageHash() != null) {
+                byte[] data = Server.getBlobStore().get(message.getImageHash());
+                image = data != null ? ImageIO.read(new ByteArrayInputStream(data)) : null;
+            } else {
+                image = message.getImage().getImage();
+            }
+            if (image == null || image.getWidth(null) <= 0) {
+                return null;
+            }
+
+            BufferedImage thumbnail = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = thumbnail.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, size, size, null);
+            g.dispose();
+            return new ImageIcon(thumbnail);
+        } catch (IOException e) {
+            System.out.println("No image available for this message.");
+            return null;
+        }
+    }
+}
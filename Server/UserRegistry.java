@@ -0,0 +1,156 @@
+package Server;
+
+import Both.User;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.swing.*;
+
+/**
+ * Gives every user a small numeric id and keeps one profile per user: the id, the user name and the
+ * hash of the profile picture in the blob store. Messages and updates reference users by id, and the
+ * server always sends these profiles rather than the User objects clients sent, so a client's friend
+ * list or picture never travels along with its messages.
+ * Ids are handed out in order starting at 1 and never change. The registry is an append-only file of
+ * profile records, where a later record for the same id replaces the earlier one.
+ */
+public class UserRegistry {
+    private Path file;
+    private FileChannel channel;
+    private ArrayList<User> users = new ArrayList<>();
+    private HashMap<String, User> usersByName = new HashMap<>();
+
+    /**
+     * Constructs a UserRegistry stored in the specified file and loads the profiles saved in it.
+     */
+    public UserRegistry(String filePath) {
+        this.file = Paths.get(filePath);
+        try {
+            long end = load();
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.size() > end) {
+                System.out.println("Truncating torn tail of " + file + " at byte " + end);
+                channel.truncate(end);
+            }
+            channel.position(end);
+        } catch (IOException e) {
+            System.err.println("Error in opening user registry: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the saved profile records.
+     *
+     * @return the length of the records that were read completely
+     */
+    private long load() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long end = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int id = in.readInt();
+                String userName = in.readUTF();
+                String imageHash = in.readBoolean() ? in.readUTF() : null;
+                end += 4 + 2 + utfLength(userName) + 1 + (imageHash == null ? 0 : 2 + utfLength(imageHash));
+
+                User user = id <= users.size() ? users.get(id - 1) : add(userName);
+                user.setImageHash(imageHash);
+            }
+        } catch (EOFException e) {
+            return end;
+        }
+    }
+
+    /**
+     * Registers a user who just connected, or updates the picture of a known user.
+     * Only the handshake, and the import of messages saved by older servers, create users; routing
+     * looks users up with get, so a name that was made up in a message never gets an id.
+     *
+     * @return the profile of the user
+     */
+    public synchronized User register(User user) {
+        User profile = usersByName.get(user.getUserName());
+        if (profile == null) {
+            profile = add(user.getUserName());
+            save(profile);
+        }
+        if (user.getImageHash() != null && !user.getImageHash().equals(profile.getImageHash())) {
+            profile.setImageHash(user.getImageHash());
+            save(profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Returns the profile of the user with the given name, or null if there is none.
+     */
+    public synchronized User get(String userName) {
+        return usersByName.get(userName);
+    }
+
+    /**
+     * Returns the profile of the user with the given id, or null if there is none.
+     */
+    public synchronized User get(int id) {
+        return id > 0 && id <= users.size() ? users.get(id - 1) : null;
+    }
+
+    /**
+     * Creates the profile of a new user with the next id.
+     */
+    private User add(String userName) {
+        User profile = new User(userName, new ImageIcon());
+        profile.setId(users.size() + 1);
+        profile.setConnected(false);
+        users.add(profile);
+        usersByName.put(userName, profile);
+        return profile;
+    }
+
+    /**
+     * Appends a record of the profile to the registry file.
+     */
+    private void save(User profile) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(profile.getId());
+            out.writeUTF(profile.getUserName());
+            out.writeBoolean(profile.getImageHash() != null);
+            if (profile.getImageHash() != null) {
+                out.writeUTF(profile.getImageHash());
+            }
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            System.err.println("Error in saving user " + profile.getUserName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of bytes writeUTF uses for the characters of the string.
+     */
+    private static int utfLength(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+}